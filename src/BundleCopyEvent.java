@@ -0,0 +1,29 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for copying one bundle out of an archive, hashing included.
+ */
+@Name("gitunbundler.BundleCopy")
+@Label("Bundle Copy")
+@Category({"GitUnbundler", "Tar"})
+@StackTrace(false)
+public class BundleCopyEvent extends Event {
+
+	@Label("Entry Name")
+	public String entryName;
+
+	@Label("Archive")
+	public String archive;
+
+	@Label("Archive Offset")
+	public long offset;
+
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+}
@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.management.OperatingSystemMXBean;
+
+/**
+ * AIMD style limiter for the number of git jobs that run at the same time.
+ *
+ * Every sample interval the limit is cut by a constant factor if the CPU or disks are saturated. Throughput is measured
+ * in bundle bytes completed per second, over a period that only ends once jobs worth the whole limit have completed,
+ * so that a few long jobs don't make a window without completions look like a collapse. At the end of each period the
+ * limit is either cut if the last increase made the throughput worse, or increased by one if the current limit is
+ * fully used and the machine still has headroom.
+ *
+ * Heavy jobs can take several slots at once so that they get a bigger share of the cores, a job never takes more
+ * slots than the current limit. Slots are handed out in arrival order, so a heavy job waiting for its slots holds back
+ * the jobs behind it rather than being starved by a stream of single slot jobs.
+ */
+public class ConcurrencyController {
+
+	private static final double CPU_HIGH          = 0.95; //Fraction of all cores
+	private static final double LOAD_HIGH         = 1.5;  //Load average per core, not available on Windows
+	private static final double IO_WAIT_HIGH      = 0.30; //Fraction of CPU time, only available on Linux
+	private static final double DECREASE_FACTOR   = 0.75;
+	private static final double THROUGHPUT_MARGIN = 0.10; //Smaller drops than this are treated as noise
+
+	private static final Path PROC_STAT = Paths.get("/proc/stat");
+
+	private final int minLimit;
+	private final int maxLimit;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition     permitAvailable = lock.newCondition();
+	private final Deque<Thread> waiters = new ArrayDeque<Thread>(); //Guarded by lock, first in line at the head
+	private int limit;
+	private int inUse;
+
+	private long completedBytes; //Guarded by lock, since the start of the measuring period
+	private long completedSlots; //Guarded by lock, only of the jobs that processed bytes
+	private final OperatingSystemMXBean osBean = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+	private ScheduledExecutorService sampler;
+	private long     periodStartTime;
+	private double   lastThroughput = -1;
+	private boolean  lastWasIncrease = false;
+	private long[]   lastCpuTimes = null;
+
+	public ConcurrencyController(int minLimit, int maxLimit, int initialLimit) {
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit    = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+	}
+
+	public void acquire() throws InterruptedException {
+		acquire(1);
+	}
+
+	/**
+	 * @return the number of slots actually taken, which must be passed back to {@link #release(int, long)}
+	 */
+	public int acquire(int slots) throws InterruptedException {
+		lock.lock();
+		try {
+			Thread current = Thread.currentThread();
+			waiters.addLast(current);
+			try {
+				while (waiters.peekFirst() != current || inUse + Math.min(slots, limit) > limit) permitAvailable.await();
+			} finally {
+				//Also when interrupted, so that the line doesn't stall behind a thread that gave up
+				waiters.remove(current);
+				permitAvailable.signalAll();
+			}
+			int taken = Math.min(slots, limit);
+			inUse += taken;
+			return taken;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void release(long bytesProcessed) {
+		release(1, bytesProcessed);
+	}
+
+	public void release(int slots, long bytesProcessed) {
+		lock.lock();
+		try {
+			if(bytesProcessed > 0) {
+				completedBytes += bytesProcessed;
+				completedSlots += slots;
+			}
+			inUse -= slots;
+			//Waiters may need different numbers of slots, let them all check
+			permitAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public synchronized void start(long intervalMillis) {
+		if(null != sampler) return;
+
+		lastCpuTimes = readCpuTimes();
+		lock.lock();
+		try {
+			startPeriod(System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+
+		sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Concurrency-Controller");
+			t.setDaemon(true);
+			return t;
+		});
+		sampler.scheduleAtFixedRate(() -> {
+			try {
+				adjust();
+			} catch (Throwable t) {
+				System.out.println("Concurrency controller failed to adjust: " + t.getMessage());
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if(null == sampler) return;
+		sampler.shutdownNow();
+		sampler = null;
+	}
+
+	private void adjust() {
+		long now = System.nanoTime();
+
+		double cpu    = osBean.getCpuLoad(); //Negative if not available
+		double load   = osBean.getSystemLoadAverage() / osBean.getAvailableProcessors();
+		double ioWait = readIoWait();
+
+		lock.lock();
+		try {
+			int oldLimit = limit;
+			String reason = null;
+			double throughput = -1;
+
+			if(cpu >= CPU_HIGH || load >= LOAD_HIGH || ioWait >= IO_WAIT_HIGH) {
+				reason = "machine saturated";
+				limit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+				//What was measured so far mixes in the old limit and can't be compared against
+				startPeriod(now);
+				lastThroughput = -1;
+			} else if (completedSlots >= limit) {
+				//Every slot has turned over about once, the period is long enough to judge the current limit
+				throughput = completedBytes / ((now - periodStartTime) / 1_000_000_000.0);
+				startPeriod(now);
+
+				if (lastWasIncrease && lastThroughput > 0 && throughput < lastThroughput * (1 - THROUGHPUT_MARGIN)) {
+					reason = "throughput dropped";
+					limit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+				} else if (inUse >= limit && limit < maxLimit) {
+					//Only grow if the current limit is actually the bottleneck
+					reason = "headroom available";
+					limit++;
+					permitAvailable.signalAll();
+				}
+				lastThroughput = throughput;
+			} else {
+				//Keep measuring, nothing to judge an increase by yet
+				return;
+			}
+
+			lastWasIncrease = limit > oldLimit;
+			if(limit != oldLimit) {
+				System.out.println("Adjusted git job limit from " + oldLimit + " to " + limit + " (" + reason + ", cpu " + percent(cpu)
+					+ ", io wait " + percent(ioWait) + ", throughput " + (throughput < 0 ? "n/a" : (long) (throughput / (1024*1024)) + " MB/s") + ")");
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Must hold lock
+	private void startPeriod(long now) {
+		periodStartTime = now;
+		completedBytes  = 0;
+		completedSlots  = 0;
+	}
+
+	private double readIoWait() {
+		long[] cpuTimes = readCpuTimes();
+		if(null == cpuTimes || null == lastCpuTimes) {
+			lastCpuTimes = cpuTimes;
+			return -1;
+		}
+
+		long total = 0;
+		for (int i = 0; i < cpuTimes.length; i++) total += cpuTimes[i] - lastCpuTimes[i];
+		double ioWait = total > 0 ? (double) (cpuTimes[4] - lastCpuTimes[4]) / total : -1;
+		lastCpuTimes = cpuTimes;
+		return ioWait;
+	}
+
+	//The aggregate cpu line of /proc/stat: user nice system idle iowait irq softirq steal
+	private static long[] readCpuTimes() {
+		if(!Files.isReadable(PROC_STAT)) return null;
+		try {
+			List<String> lines = Files.readAllLines(PROC_STAT);
+			if(lines.isEmpty() || !lines.get(0).startsWith("cpu ")) return null;
+
+			String[] fields = lines.get(0).trim().split("\\s+");
+			if(fields.length < 9) return null;
+
+			long[] times = new long[8];
+			for (int i = 0; i < times.length; i++) times[i] = Long.parseLong(fields[i + 1]);
+			return times;
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String percent(double fraction) {
+		return fraction < 0 ? "n/a" : ((int) (fraction * 100)) + "%";
+	}
+}
@@ -0,0 +1,34 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering one child process from start to exit, so slow git commands can be lined up against
+ * GC pauses and lock contention in the same recording.
+ */
+@Name("gitunbundler.Process")
+@Label("Child Process")
+@Category({"GitUnbundler", "Git"})
+@Description("A git (or other) child process, from start until its output has been drained")
+@StackTrace(false)
+public class GitProcessEvent extends Event {
+
+	@Label("Command")
+	public String command;
+
+	@Label("Repo")
+	@Description("Name of the directory the command ran in")
+	public String repo;
+
+	@Label("Exit Code")
+	@Description("-1 if the process timed out and was killed")
+	public int exitCode = -1;
+
+	@Label("Output")
+	@DataAmount
+	public long outputBytes;
+}
@@ -0,0 +1,52 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named sets of git config that are passed to every git invocation as {@code -c key=value} arguments,
+ * so that the user's own git config is left untouched.
+ */
+public enum GitProfile {
+
+	/** Nothing is overridden, git runs with the user's own config */
+	DEFAULT,
+
+	/** Keeps git's own threads within our thread budget and stops background work, durability is unchanged */
+	BALANCED,
+
+	/** For scratch restores that can simply be re-run if the machine goes down, trades durability for speed */
+	SCRATCH;
+
+	/**
+	 * @param gitThreads the number of threads each git process may use, so that git's own threads and our pool
+	 *                   together don't oversubscribe the machine
+	 * @return the arguments to insert directly after {@code git}
+	 */
+	public List<String> configArgs(int gitThreads) {
+		if(this == DEFAULT) return new ArrayList<String>(0);
+
+		Map<String, String> config = new LinkedHashMap<String, String>();
+		config.put("pack.threads",        String.valueOf(gitThreads));
+		config.put("index.threads",       String.valueOf(gitThreads));
+		config.put("checkout.workers",    String.valueOf(gitThreads));
+		config.put("core.preloadIndex",   "true");
+		config.put("gc.auto",             "0");
+		config.put("maintenance.auto",    "false");
+
+		if(this == SCRATCH) {
+			config.put("core.fsync",            "none");
+			config.put("core.fsyncObjectFiles", "false"); //Older versions of git
+			config.put("fetch.fsckObjects",     "false");
+			config.put("transfer.fsckObjects",  "false");
+			config.put("core.logAllRefUpdates", "false");
+		}
+
+		List<String> args = new ArrayList<String>(config.size() * 2);
+		for (Map.Entry<String, String> entry : config.entrySet()) {
+			args.add("-c");
+			args.add(entry.getKey() + "=" + entry.getValue());
+		}
+		return args;
+	}
+}
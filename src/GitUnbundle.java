@@ -1,54 +1,272 @@
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveStructSparse;
 import org.apache.commons.compress.archivers.tar.WorkAroundTarArchiveInputStream;
+import org.apache.commons.compress.utils.BoundedInputStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 
 public class GitUnbundle {
 
 	
-	private static final String RAW_EXPORT_PATH     = "C:\\dev\\git\\extract.tar";
+	private static final String[] RAW_EXPORT_PATHS  = {"C:\\dev\\git\\extract.tar"}; //Split tars are given by their first part, e.g. extract.tar.001
 	private static final String BUNDLE_PATH         = "C:\\dev\\git\\bundles\\";
-	private static final String UNBUNDLED_PATH      = "C:\\dev\\git\\repos\\";
+	private static final String[] UNBUNDLED_PATHS   = {"C:\\dev\\git\\repos\\"}; //One per disk to spread the writes, see PLACEMENT_POLICY
+	private static final String VERIFY_RESULTS_PATH = "C:\\dev\\git\\verification.txt";
+	private static final String DEAD_LETTER_PATH    = "C:\\dev\\git\\dead-letters.txt";
+	private static final String QUARANTINE_PATH     = "C:\\dev\\git\\quarantine\\";
+	private static final String FAILURE_REPORT_PATH = "C:\\dev\\git\\failures.txt";
+	private static final String SHARED_OBJECTS_PATH = "C:\\dev\\git\\shared-objects\\";
+	private static final String INVENTORY_PATH      = "C:\\dev\\git\\inventory.tsv";
+	private static final String REPO_LOCATIONS_PATH = "C:\\dev\\git\\repo-locations.tsv";
+	private static final String REPO_NAMES_PATH     = "C:\\dev\\git\\repo-names.tsv";
+	private static final String WATCH_PATH          = "C:\\dev\\git\\exports\\"; //Only used in watch mode
+	private static final String LFS_STORE_PATH      = "C:\\dev\\git\\lfs-objects\\";
+	private static final String WORK_QUEUE_PATH     = "C:\\dev\\git\\work-queue\\"; //Only used by the coordinator and workers, must be shared by all of them
 	
-	private static final Path rawExportPath = Paths.get(RAW_EXPORT_PATH);
+	private static final List<Path> rawExportPaths = Arrays.stream(RAW_EXPORT_PATHS).map(Paths::get).toList();
 	private static final Path bundlePath    = Paths.get(BUNDLE_PATH); 
-	private static final Path unbundledPath = Paths.get(UNBUNDLED_PATH);
+	private static final Path manifestPath  = bundlePath.resolve("bundle-manifest.tsv");
+	private static final Path watchPath     = Paths.get(WATCH_PATH);
+	private static final Path quarantinePath = Paths.get(QUARANTINE_PATH);
+	private static final Path sharedObjectsPath = Paths.get(SHARED_OBJECTS_PATH);
+	private static final Path workQueuePath = Paths.get(WORK_QUEUE_PATH);
+	private static final Path lfsStorePath  = Paths.get(LFS_STORE_PATH);
+	
+	//Which output root each repo goes to when there are several, recorded in REPO_LOCATIONS_PATH
+	private static final RepoPlacement.Policy PLACEMENT_POLICY = RepoPlacement.Policy.SIZE_BALANCED;
+	private static final RepoPlacement        PLACEMENT        = new RepoPlacement(Arrays.stream(UNBUNDLED_PATHS).map(Paths::get).toList(),
+			PLACEMENT_POLICY, Paths.get(REPO_LOCATIONS_PATH));
+	
+	//Exports land in chunks, a file is only picked up once it has stopped changing for this long
+	private static final long WATCH_SETTLE_MILLIS = 60000;
 	
 	private static final int                THREAD_COUNT = Runtime.getRuntime().availableProcessors();
-	private static final ThreadPoolExecutor THREAD_POOL  = new ThreadPoolExecutor(THREAD_COUNT,THREAD_COUNT,100l,TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
+	
+	//When adaptive, the number of concurrent git pulls is tuned at runtime between 1 and MAX_GIT_JOBS
+	private static final boolean ADAPTIVE_CONCURRENCY = true;
+	private static final int     MAX_GIT_JOBS         = ADAPTIVE_CONCURRENCY ? THREAD_COUNT * 2 : THREAD_COUNT;
+	private static final long    ADAPTIVE_INTERVAL_MS = 15000;
+	private static final ConcurrencyController GIT_JOBS = new ConcurrencyController(1, MAX_GIT_JOBS, THREAD_COUNT);
+	
+	//Giant bundles dominate the run time, so they are started first and each one takes several git job slots.
+	//Their git processes get the threads of all of those slots for indexing and checkout.
+	private static final long HEAVY_BUNDLE_BYTES = 1024l*1024*1024;
+	private static final int  HEAVY_JOB_SLOTS    = 4;
+	
+	//Identical bundles (forks and mirrors) are detected by their digest and cloned rather than unbundled again
+	private static final boolean DEDUPLICATE_BUNDLES = true;
+	
+	//Forks sharing a root commit get one shared object repo each family, pointed to by objects/info/alternates.
+	//Restored repos then depend on SHARED_OBJECTS_PATH, so this is off by default.
+	private static final boolean SHARE_FORK_OBJECTS  = false;
+	private static final Pattern ROOT_LINE           = Pattern.compile("(\\d+):([0-9a-f]{40,64})"); //Commit time and SHA of a root
+	
+	//Config passed to every git process, see GitProfile
+	private static final GitProfile GIT_PROFILE = GitProfile.BALANCED;
+	
+	private static final ThreadPoolExecutor THREAD_POOL  = new ThreadPoolExecutor(MAX_GIT_JOBS,MAX_GIT_JOBS,100l,TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
 	private static final AtomicInteger      THREAD_ID_COUNTER = new AtomicInteger(0);
 	
-	private static final int TAR_BUFFER_SIZE = 1024*1024*10; //File is big
+	//Verification runs on its own smaller pool so that it overlaps with the unbundling of other repos
+	private static final boolean            VERIFY_BUNDLES      = false;
+	private static final int                VERIFY_THREAD_COUNT = Math.max(1, THREAD_COUNT / 4);
+	private static final ThreadPoolExecutor VERIFY_POOL         = new ThreadPoolExecutor(VERIFY_THREAD_COUNT,VERIFY_THREAD_COUNT,100l,TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
+	private static final Map<String,String> VERIFY_RESULTS      = new ConcurrentSkipListMap<String,String>();
+	
+	//Optional final stage. Commit-graphs with changed-path filters and a multi-pack-index with bitmaps make log, blame and
+	//reachability queries on the restored repos much faster. Runs behind the unbundling on its own pool, largest repos first.
+	private static final boolean            OPTIMIZE_REPOS        = false;
+	private static final int                OPTIMIZE_THREAD_COUNT = Math.max(1, THREAD_COUNT / 4);
+	private static final ThreadPoolExecutor OPTIMIZE_POOL         = new ThreadPoolExecutor(OPTIMIZE_THREAD_COUNT,OPTIMIZE_THREAD_COUNT,100l,TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+	private static final List<Future<?>>    OPTIMIZE_FUTURES      = Collections.synchronizedList(new ArrayList<Future<?>>());
+	
+	//The smudge filter stays off during unbundling. Instead the LFS objects in the export (files named by their sha256) are
+	//collected into LFS_STORE_PATH and hardlinked into each repo that references them, then the work trees can be checked out.
+	private static final boolean           RESTORE_LFS_OBJECTS = true;
+	private static final boolean           LFS_CHECKOUT        = false;
+	private static final Pattern           LFS_OID             = Pattern.compile("[0-9a-f]{64}");
+	private static final Map<String, Path> LFS_OBJECTS         = new ConcurrentHashMap<String, Path>();
+	private static final List<File>        LFS_REPOS           = Collections.synchronizedList(new ArrayList<File>()); //Restored since the last LFS stage
+	
+	//Per stage limits, a hung git (e.g. waiting on a credential prompt) is killed along with all of its children
+	private static final Duration INIT_TIMEOUT         = Duration.ofMinutes(5);
+	private static final Duration PULL_TIMEOUT         = Duration.ofHours(6);
+	private static final Duration VERIFY_TIMEOUT       = Duration.ofHours(2);
+	private static final int      MAX_RETRIES          = 2;
+	private static final long     RETRY_BACKOFF_MILLIS = 30000; //Doubles on every retry
+	
+	//Only failures that may go away are retried: timeouts, I/O errors and git output showing one of these.
+	//Anything else, like a corrupt bundle or missing prerequisites, fails the same way every time.
+	private static final String[] TRANSIENT_FAILURES = {"Unable to create", "Another git process seems to be running", "Input/output error",
+			"Resource temporarily unavailable", "Too many open files"};
+	
+	//Retries wait out their backoff here rather than in a pool thread, then go back into the pool
+	private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Retry-Scheduler");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	private static enum Outcome { SUCCEEDED, FAILED, RETRY }
+	
+	//A git failure that is worth another attempt
+	private static class TransientFailureException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		public TransientFailureException(String message) {
+			super(message);
+		}
+	}
+	
+	//Repos that failed for good or ran out of retries, with the reason
+	private static final Map<String,String> DEAD_LETTERS = new ConcurrentSkipListMap<String,String>();
+	
+	//When isolating failures, bad tar entries and bundles are quarantined and everything else keeps going.
+	//Otherwise the first failure aborts the run.
+	private static final boolean            ISOLATE_FAILURES = true;
+	private static final Map<String,String> FAILURES         = new ConcurrentSkipListMap<String,String>();
+	
+	private static final int TAR_BUFFER_SIZE  = 1024*1024*10; //File is big
+	private static final int SCAN_BUFFER_SIZE = 64*1024; //When most entries are skipped, a big buffer means reading far more than the headers
+	
+	//One thread reads the output of all the git processes, only the tail is kept for error reporting
+	private static final OutputPump OUTPUT_PUMP       = new OutputPump();
+	private static final int        OUTPUT_TAIL_BYTES = 16*1024;
+	private static final int COPY_BUFFER_SIZE = 1024*1024;
+	
+	//Archive data and bundles are streamed through once, drop them from the page cache so the pack files git is
+	//working on stay cached. Linux only, a no-op anywhere posix_fadvise can't be called (see PageCache).
+	private static final boolean PAGE_CACHE_HINTS = true;
+	
+	//Digests of the extracted bundles, keyed by bundle file name. Only written once a copy completes.
+	private static final Map<String, ManifestEntry> BUNDLE_MANIFEST = new ConcurrentHashMap<String, ManifestEntry>();
+	private static boolean manifestLoaded = false;
+	
+	private static record ManifestEntry(long size, long lastModified, String digest) {}
+	
+	//Only matching repos are restored. Names and sizes are checked against the tar header so that non-matching entries
+	//are skipped without reading their data, refs need the bundle header at the start of the entry. Empty means everything.
+	//Patterns are globs, or regular expressions when prefixed with "regex:".
+	private static final String[] INCLUDE_PATTERNS     = {};
+	private static final String[] EXCLUDE_PATTERNS     = {};
+	private static final String[] INCLUDE_REF_PATTERNS = {};
+	private static final long     MIN_BUNDLE_BYTES     = 0;
+	private static final long     MAX_BUNDLE_BYTES     = Long.MAX_VALUE;
+	
+	//Where each bundle lives in the export and which refs it has, so repos can be found and restored without a full pass
+	private static final Inventory INVENTORY = new Inventory(Paths.get(INVENTORY_PATH));
+	
+	//Spreading a restore over several workers, see WorkQueue. The exports must be at the same path on every host.
+	private static final long WORK_UNIT_BYTES    = 1024l*1024*1024; //Smaller bundles are batched into units of about this size
+	private static final long LEASE_TIMEOUT_MS   = 10*60*1000; //A worker that hasn't renewed its lease for this long is presumed dead
+	private static final int  WORKER_BATCH_UNITS = THREAD_COUNT; //Units claimed at once and unbundled together, giant units are claimed alone
+	
+	//Bundles are unbundled from wherever they were found, keyed by the repo name they are restored as.
+	//Hash-directory exports can have the same file name in several places, the index gives each one its own repo.
+	private static final Map<String, File> BUNDLE_INDEX  = new ConcurrentSkipListMap<String, File>();
+	private static final Map<String, Object> EXTRACT_LOCKS = new ConcurrentHashMap<String, Object>(); //One per repo being extracted
+	
+	//The name each bundle was given, keyed by its path within its export, recorded in REPO_NAMES_PATH.
+	//Names are kept across runs so a suffix never depends on what else happened to be in a run.
+	private static final Map<String, String> REPO_NAMES = new HashMap<String, String>();
+	private static final Map<String, String> NAMED_KEYS = new HashMap<String, String>(); //The other way around
+	private static boolean repoNamesLoaded = false;
+	
+	private static record Bundle(String repo, File file) {}
+	
+	//A status line with bytes done, throughput and ETA, optionally also served on localhost. A port of 0 disables the HTTP view.
+	private static final Progress PROGRESS             = new Progress();
+	private static final long     PROGRESS_INTERVAL_MS = 10000;
+	private static final int      PROGRESS_HTTP_PORT   = 0;
 	
 	public static void main(String[] args) throws IOException {
 		try {
-			flattenRawExport(rawExportPath, bundlePath);
-			createBundleDirs();
-			unbundle();
+			PROGRESS.start(PROGRESS_INTERVAL_MS, PROGRESS_HTTP_PORT);
+			
+			if(args.length > 0 && args[0].equalsIgnoreCase("watch")) {
+				watchExports(); //Only returns if interrupted
+			} else if(args.length > 0 && args[0].equalsIgnoreCase("index")) {
+				INVENTORY.clear();
+				for (Path rawExportPath : rawExportPaths) indexTarFile(rawExportPath);
+			} else if(args.length > 2 && args[0].equalsIgnoreCase("query")) {
+				queryInventory(args[1], args[2]);
+			} else if(args.length > 0 && args[0].equalsIgnoreCase("coordinate")) {
+				coordinate();
+			} else if(args.length > 0 && args[0].equalsIgnoreCase("work")) {
+				work(args.length > 1 ? args[1] : InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid());
+			} else if(args.length > 1 && args[0].equalsIgnoreCase("restore")) {
+				restoreFromInventory(Arrays.copyOfRange(args, 1, args.length));
+				processBundles(bundlePath);
+			} else {
+				flattenRawExports(rawExportPaths, bundlePath);
+				processBundles(bundlePath);
+			}
 			
+			PROGRESS.stop();
 			THREAD_POOL.shutdown();
+			VERIFY_POOL.shutdown();
+			OPTIMIZE_POOL.shutdown();
+			RETRY_SCHEDULER.shutdown();
 			System.out.println("All done. Bye :)");
 		} catch (Throwable t) {
 			System.out.println("Error: " + t.getMessage());
@@ -56,125 +274,849 @@ public class GitUnbundle {
 		}
 	}
 	
-	private static void unbundle() throws IOException {
+	private static void watchExports() throws IOException, InterruptedException {
+		System.out.println("Watching for new exports in: " + watchPath);
 		
-		List<Future<?>> futures = new ArrayList<Future<?>>();
-		
-		Files.list(bundlePath).forEach(path -> {
-			File bundleFile = path.toFile();
-			if (!bundleFile.isFile()) return;
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			watchPath.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
 			
-			String fileName = bundleFile.getName();
-			int index = fileName.indexOf(".bundle");
-			if (index < 1) return;
-			
-			File unbundledDir = unbundledPath.resolve(bundleFile.getName().substring(0, index)).toFile();
+			//Time of the last change seen for each path. Anything already present may still be being copied, so it has to
+			//settle like everything else, counting from when it was last modified.
+			Map<Path, Long> pending = new HashMap<Path, Long>();
+			Set<Path> incomplete = new HashSet<Path>(); //Tars that have settled without their end, only reported once
+			try (Stream<Path> paths = Files.list(watchPath)) {
+				paths.forEach(path -> pending.put(path, lastChange(path)));
+			}
 			
-			futures.add(THREAD_POOL.submit(new Runnable() {
-				 
-				@Override
-				public void run() {
-					int threadId = THREAD_ID_COUNTER.getAndIncrement();
-				 
-					System.out.println(threadId + ":: Creating git repo in: " + unbundledDir);
-					try {
-						String cmd = "git init";
-						if(runProcess(threadId, cmd, unbundledDir) > 0) {
-							System.out.println(threadId + ":: Git repo creation failed in: " + unbundledDir);
-							return;
-						}
-						//The smudge filter often causes problems and is unneeded since we know our repo is clean
-						cmd = "git lfs install --skip-smudge";
-						if(runProcess(threadId, cmd, unbundledDir) > 0){
-							System.out.println(threadId + ":: Failed to disable smudge filter in: " + unbundledDir);
-							return;
+			while (true) {
+				WatchKey key = pending.isEmpty() ? watcher.take() : watcher.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				if(null != key) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							try (Stream<Path> paths = Files.list(watchPath)) {
+								paths.forEach(path -> pending.put(path, System.currentTimeMillis()));
+							}
+						} else {
+							pending.put(watchPath.resolve((Path) event.context()), System.currentTimeMillis());
 						}
-						
-					} catch (Throwable t) {
-						System.out.println(threadId + ":: ERROR during git init command: " + t.getMessage());
-						t.printStackTrace();
-						return; //Don't throw a runtime exception, let the other threads run
 					}
-					
-					System.out.println(threadId + ":: Git repo created in: " + unbundledDir);
-					System.out.println(threadId + ":: Unbundling file: " + bundleFile);
+					key.reset();
+				}
+				
+				boolean batchReady = false;
+				Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Path, Long> entry = it.next();
+					entry.setValue(Math.max(entry.getValue(), lastChange(entry.getKey())));
+					if(System.currentTimeMillis() - entry.getValue() < WATCH_SETTLE_MILLIS) continue; //Still landing
+					if(MultiPartInputStream.isFirstPart(entry.getKey()) && isPartLanding(pending)) continue; //The whole split archive is read at once
+					if(isTar(entry.getKey()) && !MultiPartInputStream.hasEndOfArchive(entry.getKey())) {
+						//More parts to come, or copied in more than one go. Looked at again as the rest lands.
+						if(incomplete.add(entry.getKey())) System.out.println("Waiting for the rest of export: " + entry.getKey());
+						continue;
+					}
+					incomplete.remove(entry.getKey());
+					it.remove();
 					
 					try {
-						final String cmd = "git pull --progress \"" + bundleFile.getAbsolutePath() + "\"";
-						if(runProcess(threadId, cmd, unbundledDir) > 0) {
-							System.out.println(threadId + ":: Unbundling failed for bundle: " + bundleFile);
-						} else {
-							System.out.println(threadId + ":: Unbundling succeeded, deleting bundle: " + bundleFile);
-							bundleFile.delete();
-						}
+						System.out.println("Processing new export: " + entry.getKey());
+						flattenRawExport(entry.getKey(), bundlePath);
+						batchReady = true;
 					} catch (Throwable t) {
-						System.out.println(threadId + ":: ERROR during git unbundling: " + t.getMessage());
-						t.printStackTrace(); //Don't throw a runtime exception, let the other threads run
+						//Keep watching, the rest of the exports may still be fine
+						System.out.println("ERROR processing export " + entry.getKey() + ": " + t.getMessage());
+						t.printStackTrace();
 					}
 				}
-			}));
+				
+				if(!batchReady) continue;
+				
+				try {
+					processBundles(bundlePath);
+					System.out.println("Batch done. Watching for new exports in: " + watchPath);
+				} catch (Throwable t) {
+					System.out.println("ERROR processing batch: " + t.getMessage());
+					t.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	//Newest modification anywhere under the path. Files landing in the subdirectories of a directory export produce no
+	//events on the watched directory, so the whole tree is looked at.
+	private static long lastChange(Path path) {
+		try (Stream<Path> tree = Files.walk(path)) {
+			return tree.mapToLong(treePath -> treePath.toFile().lastModified()).max().orElse(0);
+		} catch (IOException | UncheckedIOException e) {
+			return System.currentTimeMillis(); //Changed while walking it, so not settled
+		}
+	}
+	
+	//A tar or the first part of a split one, which stands for the whole archive
+	private static boolean isTar(Path path) {
+		return path.getFileName().toString().toLowerCase().endsWith(".tar") || MultiPartInputStream.isFirstPart(path);
+	}
+	
+	private static boolean isPartLanding(Map<Path, Long> pending) {
+		for (Map.Entry<Path, Long> entry : pending.entrySet()) {
+			if(MultiPartInputStream.isPart(entry.getKey()) && System.currentTimeMillis() - entry.getValue() < WATCH_SETTLE_MILLIS) return true;
+		}
+		return false;
+	}
+	
+	//Everything after the bundles have been extracted into the given directory
+	private static void processBundles(Path bundleDir) throws IOException {
+		indexBundleDir(bundleDir); //Extracted, restored or left over from a previous run
+		createBundleDirs();
+		unbundle();
+		if(RESTORE_LFS_OBJECTS) restoreLfsObjects();
+		if(SHARE_FORK_OBJECTS) shareForkObjects();
+		if(OPTIMIZE_REPOS) optimizeRepos();
+		reportFailures();
+	}
+	
+	private static void unbundle() throws IOException {
+		
+		//Duplicates are submitted from the worker threads once their original has been unbundled
+		List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
+		List<Future<?>> verifyFutures = Collections.synchronizedList(new ArrayList<Future<?>>());
+		
+		//Largest first so the long tail of giant repos overlaps with all of the small ones
+		List<Bundle> bundles = listBundles();
+		bundles.sort(Comparator.comparingLong((Bundle bundle) -> bundle.file().length()).reversed());
+		
+		//Byte-identical bundles are only unbundled once, the rest are cloned from the first one
+		Map<Bundle, List<Bundle>> duplicates = DEDUPLICATE_BUNDLES ? findDuplicateBundles(bundles) : null;
+		bundles.forEach(bundle -> PROGRESS.queued(bundle.file().length()));
+		
+		bundles.forEach(bundle -> {
+			if(null != duplicates && !duplicates.containsKey(bundle)) return; //Handled along with its original
+			List<Bundle> copies = null == duplicates ? new ArrayList<Bundle>() : duplicates.get(bundle);
+			futures.add(THREAD_POOL.submit(()->unbundleRepo(bundle, copies, futures, verifyFutures)));
+		});
+		
+		if(ADAPTIVE_CONCURRENCY) GIT_JOBS.start(ADAPTIVE_INTERVAL_MS);
+		try {
+			waitForTaskCompletion(futures);
+		} finally {
+			GIT_JOBS.stop();
+		}
+		
+		//All of the unbundling tasks are done so no more verification tasks can be added
+		if(VERIFY_BUNDLES) {
+			waitForTaskCompletion(verifyFutures);
+			writeVerificationResults();
+		}
+		writeDeadLetters();
+	}
+	
+	//Maps each bundle that will be unbundled to its byte-identical duplicates, using the digests from extraction.
+	//Only extracted bundles have digests, bundles unbundled in place are never treated as duplicates.
+	private static Map<Bundle, List<Bundle>> findDuplicateBundles(List<Bundle> bundles) throws IOException {
+		loadManifest();
+		
+		Map<String, Bundle> originals = new HashMap<String, Bundle>();
+		Map<Bundle, List<Bundle>> duplicates = new HashMap<Bundle, List<Bundle>>();
+		for (Bundle bundle : bundles) {
+			File bundleFile = bundle.file();
+			ManifestEntry entry = BUNDLE_MANIFEST.get(bundleFile.getName());
+			boolean extracted = bundlePath.toAbsolutePath().equals(bundleFile.toPath().toAbsolutePath().getParent());
+			Bundle original = (extracted && null != entry && isInManifest(bundleFile, bundleFile.length())) ? originals.putIfAbsent(entry.digest(), bundle) : null;
+			if(null == original) {
+				duplicates.put(bundle, new ArrayList<Bundle>());
+			} else {
+				System.out.println("Bundle file " + bundleFile.getName() + " is identical to " + original.file().getName());
+				duplicates.get(original).add(bundle);
+			}
+		}
+		return duplicates;
+	}
+	
+	private static void unbundleRepo(Bundle bundle, List<Bundle> duplicates, List<Future<?>> futures, List<Future<?>> verifyFutures) {
+		unbundleRepo(bundle, duplicates, futures, verifyFutures, 0);
+	}
+	
+	private static void unbundleRepo(Bundle bundle, List<Bundle> duplicates, List<Future<?>> futures, List<Future<?>> verifyFutures, int tries) {
+		int threadId = THREAD_ID_COUNTER.getAndIncrement();
+		File bundleFile = bundle.file();
+		File unbundledDir = repoDir(bundle.repo());
+		long bundleSize = bundleFile.length(); //The bundle is gone once it has been unbundled
+		Outcome outcome = Outcome.FAILED;
+		
+		PROGRESS.started();
+		try {
+			outcome = createRepo(threadId, bundleFile, unbundledDir, tries);
+			if(outcome == Outcome.SUCCEEDED) outcome = pullBundle(threadId, bundleFile, unbundledDir, tries);
+			if(outcome == Outcome.SUCCEEDED) unbundleSucceeded(threadId, bundleFile, unbundledDir, verifyFutures);
+		} catch (Throwable t) {
+			System.out.println(threadId + ":: ERROR during git unbundling: " + t.getMessage());
+			t.printStackTrace(); //Don't throw a runtime exception, let the other threads run
+		}
+		
+		if(outcome == Outcome.RETRY) {
+			//The duplicates wait for the next attempt
+			PROGRESS.requeued();
+			retryLater(tries, futures, ()->unbundleRepo(bundle, duplicates, futures, verifyFutures, tries + 1));
+			return;
+		}
+		boolean unbundled = outcome == Outcome.SUCCEEDED;
+		PROGRESS.finished(bundleSize, unbundled);
+		
+		for (Bundle duplicate : duplicates) {
+			if(unbundled) {
+				futures.add(THREAD_POOL.submit(()->cloneDuplicate(unbundledDir, duplicate, futures, verifyFutures, 0)));
+			} else {
+				//Nothing to clone from, the duplicate has to be unbundled on its own
+				futures.add(THREAD_POOL.submit(()->unbundleRepo(duplicate, new ArrayList<Bundle>(), futures, verifyFutures)));
+			}
+		}
+	}
+	
+	private static Outcome createRepo(int threadId, File bundleFile, File unbundledDir, int tries) throws InterruptedException {
+		System.out.println(threadId + ":: Creating git repo in: " + unbundledDir);
+		Outcome created = attempt(threadId, unbundledDir.getName(), "Git repo creation", tries, () -> {
+			if(!runStep(threadId, "git init", unbundledDir, INIT_TIMEOUT, gitThreadBudget())) {
+				System.out.println(threadId + ":: Git repo creation failed in: " + unbundledDir);
+				return false;
+			}
+			//The smudge filter often causes problems and is unneeded since we know our repo is clean
+			if(!runStep(threadId, "git lfs install --skip-smudge", unbundledDir, INIT_TIMEOUT, gitThreadBudget())) {
+				System.out.println(threadId + ":: Failed to disable smudge filter in: " + unbundledDir);
+				return false;
+			}
+			return true;
 		});
+		if(created != Outcome.SUCCEEDED) return created;
 		
+		System.out.println(threadId + ":: Git repo created in: " + unbundledDir);
+		
+		if(VERIFY_BUNDLES) {
+			//Cheap check of the bundle header and prerequisites before spending time on the pull
+			try {
+				final String cmd = "git bundle verify \"" + bundleFile.getAbsolutePath() + "\"";
+				if(runProcess(threadId, cmd, unbundledDir, VERIFY_TIMEOUT) > 0) {
+					System.out.println(threadId + ":: Bundle verification failed for bundle: " + bundleFile);
+					VERIFY_RESULTS.put(unbundledDir.getName(), "FAILED: git bundle verify");
+					return Outcome.FAILED;
+				}
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Throwable t) {
+				System.out.println(threadId + ":: ERROR during bundle verification: " + t.getMessage());
+				t.printStackTrace();
+				VERIFY_RESULTS.put(unbundledDir.getName(), "ERROR: " + t.getMessage());
+				return Outcome.FAILED;
+			}
+		}
+		return Outcome.SUCCEEDED;
+	}
+	
+	private static Outcome pullBundle(int threadId, File bundleFile, File unbundledDir, int tries) throws InterruptedException {
+		System.out.println(threadId + ":: Unbundling file: " + bundleFile);
+		
+		final String cmd = "git pull --progress \"" + bundleFile.getAbsolutePath() + "\"";
+		final long bundleSize = bundleFile.length();
+		final boolean heavy = bundleSize >= HEAVY_BUNDLE_BYTES;
+		
+		Outcome pulled = attempt(threadId, unbundledDir.getName(), "Unbundling", tries, () -> {
+			//A killed git leaves its lock behind, which would fail every retry
+			Files.deleteIfExists(unbundledDir.toPath().resolve(".git").resolve("index.lock"));
+			
+			//Only hold git job slots while git is actually running, not while backing off
+			boolean success = false;
+			int slots = GIT_JOBS.acquire(heavy ? HEAVY_JOB_SLOTS : 1);
+			try {
+				if(heavy) System.out.println(threadId + ":: Heavy bundle, using " + slots + " job slots: " + bundleFile);
+				success = runStep(threadId, cmd, unbundledDir, PULL_TIMEOUT, slots * gitThreadBudget());
+				return success;
+			} finally {
+				GIT_JOBS.release(slots, success ? bundleSize : 0);
+			}
+		});
+		
+		if(pulled != Outcome.SUCCEEDED) System.out.println(threadId + ":: Unbundling failed for bundle: " + bundleFile);
+		return pulled;
+	}
+	
+	private static void unbundleSucceeded(int threadId, File bundleFile, File unbundledDir, List<Future<?>> verifyFutures) {
+		//Sharing repacks the repo, which would throw the work away, so in that case everything is optimized afterwards
+		if(OPTIMIZE_REPOS && !SHARE_FORK_OBJECTS) queueOptimization(unbundledDir, bundleFile.length());
+		if(RESTORE_LFS_OBJECTS) LFS_REPOS.add(unbundledDir);
+		
+		if (VERIFY_BUNDLES) {
+			//Hand off to the verification pool, the bundle is only deleted once the repo checks out
+			System.out.println(threadId + ":: Unbundling succeeded, queueing verification: " + unbundledDir);
+			verifyFutures.add(VERIFY_POOL.submit(()->verifyRepo(bundleFile, unbundledDir)));
+		} else {
+			System.out.println(threadId + ":: Unbundling succeeded, deleting bundle: " + bundleFile);
+			bundleFile.delete();
+		}
+	}
+	
+	//Clones the already unbundled original, on the same volume git hardlinks the objects instead of copying them
+	private static void cloneDuplicate(File originalDir, Bundle bundle, List<Future<?>> futures, List<Future<?>> verifyFutures, int tries) {
+		int threadId = THREAD_ID_COUNTER.getAndIncrement();
+		File bundleFile = bundle.file();
+		File unbundledDir = repoDir(bundle.repo());
+		long bundleSize = bundleFile.length();
+		Outcome cloned = Outcome.FAILED;
+		
+		PROGRESS.started();
+		System.out.println(threadId + ":: Cloning " + originalDir + " into " + unbundledDir + " since the bundles are identical");
+		try {
+			cloned = attempt(threadId, unbundledDir.getName(), "Cloning duplicate", tries, () -> {
+				GIT_JOBS.acquire();
+				try {
+					//A failed attempt leaves a partial clone behind, which git won't clone into
+					FileUtils.cleanDirectory(unbundledDir);
+					if(!runStep(threadId, "git clone --local --no-checkout \"" + originalDir.getAbsolutePath() + "\" .", unbundledDir, PULL_TIMEOUT, gitThreadBudget())) return false;
+					if(!runStep(threadId, "git lfs install --skip-smudge", unbundledDir, INIT_TIMEOUT, gitThreadBudget())) return false;
+					//An unbundled repo has no remotes, the clone shouldn't point at its sibling either
+					if(!runStep(threadId, "git remote remove origin", unbundledDir, INIT_TIMEOUT, gitThreadBudget())) return false;
+					return runStep(threadId, "git reset --hard", unbundledDir, PULL_TIMEOUT, gitThreadBudget());
+				} finally {
+					GIT_JOBS.release(0);
+				}
+			});
+			
+			if(cloned == Outcome.SUCCEEDED) {
+				unbundleSucceeded(threadId, bundleFile, unbundledDir, verifyFutures);
+			} else if(cloned == Outcome.FAILED) {
+				System.out.println(threadId + ":: Cloning failed for duplicate bundle: " + bundleFile);
+			}
+		} catch (Throwable t) {
+			System.out.println(threadId + ":: ERROR during duplicate cloning: " + t.getMessage());
+			t.printStackTrace(); //Don't throw a runtime exception, let the other threads run
+		}
+		
+		if(cloned == Outcome.RETRY) {
+			PROGRESS.requeued();
+			retryLater(tries, futures, ()->cloneDuplicate(originalDir, bundle, futures, verifyFutures, tries + 1));
+			return;
+		}
+		PROGRESS.finished(bundleSize, cloned == Outcome.SUCCEEDED);
+	}
+	
+	private static void shareForkObjects() throws IOException {
+		//Forks share their root commits, group the repos by their oldest root by commit time
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		Map<String, List<File>> families = new ConcurrentHashMap<String, List<File>>();
+		
+		for (File repoDir : listRepos()) {
+			if(repoDir.toPath().resolve(".git").resolve("objects").resolve("info").resolve("alternates").toFile().exists()) continue; //Already shared
+			
+			futures.add(THREAD_POOL.submit(()->{
+				int threadId = THREAD_ID_COUNTER.getAndIncrement();
+				try {
+					List<String> output = new ArrayList<String>();
+					String root = runProcess(threadId, "git log --max-parents=0 --format=%ct:%H HEAD", repoDir, VERIFY_TIMEOUT, output) > 0 ? null : oldestRoot(output);
+					if(null == root) {
+						System.out.println(threadId + ":: Failed to find the root commits of: " + repoDir);
+						return;
+					}
+					families.computeIfAbsent(root, k -> Collections.synchronizedList(new ArrayList<File>())).add(repoDir);
+				} catch (Throwable t) {
+					System.out.println(threadId + ":: ERROR finding root commits: " + t.getMessage());
+					t.printStackTrace(); //Not sharing is always safe
+				}
+			}));
+		}
 		waitForTaskCompletion(futures);
+		
+		futures.clear();
+		Files.createDirectories(sharedObjectsPath);
+		for (Map.Entry<String, List<File>> family : families.entrySet()) {
+			if(family.getValue().size() < 2) continue;
+			futures.add(THREAD_POOL.submit(()->shareFamilyObjects(family.getKey(), family.getValue())));
+		}
+		waitForTaskCompletion(futures);
+		System.out.println("Shared objects of " + futures.size() + " fork families.");
+	}
+	
+	//Lines of commit time and SHA. The SHA breaks ties so that forks with the same roots always agree on one.
+	private static String oldestRoot(List<String> output) {
+		String oldest = null;
+		long oldestTime = Long.MAX_VALUE;
+		for (String line : output) {
+			Matcher matcher = ROOT_LINE.matcher(line.trim());
+			if(!matcher.matches()) continue; //Warnings mixed into the output
+			
+			long time = Long.parseLong(matcher.group(1));
+			String sha = matcher.group(2);
+			if(time < oldestTime || (time == oldestTime && sha.compareTo(oldest) < 0)) {
+				oldest = sha;
+				oldestTime = time;
+			}
+		}
+		return oldest;
 	}
 	
-	private static int runProcess(int threadId, String command, File directory) throws IOException, InterruptedException {
+	private static void shareFamilyObjects(String root, List<File> members) {
+		int threadId = THREAD_ID_COUNTER.getAndIncrement();
+		File sharedRepo = sharedObjectsPath.resolve(root + ".git").toFile();
+		System.out.println(threadId + ":: Sharing objects of " + members.size() + " forks in: " + sharedRepo);
+		
+		try {
+			if(!sharedRepo.exists() && runProcess(threadId, "git init --bare " + sharedRepo.getName(), sharedObjectsPath.toFile(), INIT_TIMEOUT) > 0) {
+				System.out.println(threadId + ":: Failed to create shared object repo: " + sharedRepo);
+				return;
+			}
+			String alternate = sharedRepo.toPath().resolve("objects").toAbsolutePath().toString();
+			
+			//One member at a time, each fetch only adds the objects the family doesn't have yet
+			for (File repoDir : members) {
+				try {
+					//Keep a ref per fork so the shared objects stay reachable
+					String cmd = "git fetch --no-tags \"" + repoDir.getAbsolutePath() + "\" +refs/heads/*:refs/forks/" + repoDir.getName() + "/*";
+					if(runProcess(threadId, cmd, sharedRepo, PULL_TIMEOUT) > 0) {
+						System.out.println(threadId + ":: Failed to fetch " + repoDir + " into shared object repo, leaving it as is.");
+						continue;
+					}
+					
+					Files.writeString(repoDir.toPath().resolve(".git").resolve("objects").resolve("info").resolve("alternates"), alternate + "\n");
+					
+					//Drop the local copies of everything that is now in the shared repo
+					if(runProcess(threadId, "git repack -a -d -l", repoDir, PULL_TIMEOUT) > 0) {
+						System.out.println(threadId + ":: Failed to repack " + repoDir + ", its objects are duplicated in the shared repo.");
+						continue;
+					}
+					System.out.println(threadId + ":: Repo now uses shared objects: " + repoDir);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Throwable t) {
+					System.out.println(threadId + ":: ERROR sharing objects of " + repoDir + ": " + t.getMessage());
+					t.printStackTrace(); //Carry on with the rest of the family
+				}
+			}
+		} catch (Throwable t) {
+			System.out.println(threadId + ":: ERROR creating shared object repo: " + t.getMessage());
+			t.printStackTrace();
+		}
+	}
+	
+	//Queued on a priority queue, so it has to be comparable. Largest repos first, like the unbundling.
+	private static class OptimizeTask extends FutureTask<Void> implements Comparable<OptimizeTask> {
+		private final long size;
+		
+		private OptimizeTask(File repoDir, long size) {
+			super(() -> optimizeRepo(repoDir), null);
+			this.size = size;
+		}
+		
+		@Override
+		public int compareTo(OptimizeTask other) {
+			return Long.compare(other.size, size);
+		}
+	}
+	
+	private static void queueOptimization(File repoDir, long size) {
+		OptimizeTask task = new OptimizeTask(repoDir, size);
+		OPTIMIZE_FUTURES.add(task);
+		OPTIMIZE_POOL.execute(task);
+	}
+	
+	//Waits for the optimizations queued during unbundling, or queues them all now if the repos have just been shared
+	private static void optimizeRepos() throws IOException {
+		if(SHARE_FORK_OBJECTS) {
+			for (File repoDir : listRepos()) {
+				if(!isOptimized(repoDir)) queueOptimization(repoDir, packBytes(repoDir));
+			}
+		}
+		waitForTaskCompletion(OPTIMIZE_FUTURES);
+		System.out.println("Optimized " + OPTIMIZE_FUTURES.size() + " repos.");
+		OPTIMIZE_FUTURES.clear();
+	}
+	
+	private static void optimizeRepo(File repoDir) {
+		int threadId = THREAD_ID_COUNTER.getAndIncrement();
+		System.out.println(threadId + ":: Optimizing repo: " + repoDir);
+		try {
+			//Shares the job limit with the unbundling, which is still running
+			GIT_JOBS.acquire();
+			try {
+				if(runProcess(threadId, "git commit-graph write --reachable --changed-paths", repoDir, PULL_TIMEOUT) > 0) {
+					System.out.println(threadId + ":: Failed to write the commit-graph in: " + repoDir);
+					FAILURES.put(repoDir.getName() + " (optimize)", "git commit-graph write failed");
+				}
+				//A fork whose objects are all in the shared repo has no packs of its own to index
+				if(packBytes(repoDir) == 0) {
+					System.out.println(threadId + ":: No local packs, skipping the multi-pack-index in: " + repoDir);
+				} else if(runProcess(threadId, "git multi-pack-index write --bitmap", repoDir, PULL_TIMEOUT) > 0) {
+					System.out.println(threadId + ":: Failed to write the multi-pack-index in: " + repoDir);
+					FAILURES.put(repoDir.getName() + " (optimize)", "git multi-pack-index write failed");
+				}
+			} finally {
+				GIT_JOBS.release(0);
+			}
+			System.out.println(threadId + ":: Finished optimizing repo: " + repoDir);
+		} catch (Throwable t) {
+			System.out.println(threadId + ":: ERROR during repo optimization: " + t.getMessage());
+			t.printStackTrace(); //The repo is still usable without it
+			FAILURES.put(repoDir.getName() + " (optimize)", "Optimization failed: " + t);
+		}
+	}
+	
+	private static boolean isOptimized(File repoDir) throws IOException {
+		Path objects = repoDir.toPath().resolve(".git").resolve("objects");
+		return Files.exists(objects.resolve("info").resolve("commit-graph"))
+				&& (Files.exists(objects.resolve("pack").resolve("multi-pack-index")) || packBytes(repoDir) == 0);
+	}
+	
+	//Size of the repo's own pack files
+	private static long packBytes(File repoDir) throws IOException {
+		long bytes = 0;
+		try (Stream<Path> files = Files.list(repoDir.toPath().resolve(".git").resolve("objects").resolve("pack"))) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				if(file.getFileName().toString().endsWith(".pack")) bytes += file.toFile().length();
+			}
+		}
+		return bytes;
+	}
+	
+	//All of the unbundled repos in the output paths
+	private static List<File> listRepos() throws IOException {
+		List<File> repos = new ArrayList<File>();
+		for (Path root : PLACEMENT.roots()) {
+			if(!Files.isDirectory(root)) continue;
+			try (Stream<Path> paths = Files.list(root)) {
+				paths.forEach(path -> {
+					if (path.resolve(".git").toFile().isDirectory()) repos.add(path.toFile());
+				});
+			}
+		}
+		return repos;
+	}
+	
+	private static File repoDir(String repoName) {
+		return PLACEMENT.locate(repoName).resolve(repoName).toFile();
+	}
+	
+	private static String repoName(File bundleFile) {
+		String fileName = bundleFile.getName();
+		int index = fileName.toLowerCase().indexOf(".bundle");
+		return index < 1 ? fileName : fileName.substring(0, index);
+	}
+	
+	//One attempt at a stage for a repo. A timeout or transient failure asks for a retry until MAX_RETRIES is reached,
+	//any other failure gives up straight away. Repos that give up are dead-lettered.
+	private static Outcome attempt(int threadId, String repoName, String stage, int tries, Callable<Boolean> attempt) throws InterruptedException {
+		String failure;
+		boolean retriable;
+		try {
+			if(attempt.call()) return Outcome.SUCCEEDED;
+			failure = "failed";
+			retriable = false;
+		} catch (TimeoutException e) {
+			failure = "timed out";
+			retriable = true;
+		} catch (TransientFailureException e) {
+			failure = "failed with: " + e.getMessage();
+			retriable = true;
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (IOException e) {
+			failure = "failed with I/O error: " + e.getMessage();
+			retriable = true;
+		} catch (Throwable t) {
+			failure = "failed with error: " + t.getMessage();
+			retriable = false;
+			t.printStackTrace();
+		}
+		
+		if(!retriable) {
+			System.out.println(threadId + ":: " + stage + " " + failure + " for " + repoName + ", not retrying.");
+			DEAD_LETTERS.put(repoName, stage + " " + failure + ", not retried");
+			return Outcome.FAILED;
+		}
+		if(tries >= MAX_RETRIES) {
+			System.out.println(threadId + ":: " + stage + " " + failure + " for " + repoName + ", giving up after " + (tries + 1) + " attempts.");
+			DEAD_LETTERS.put(repoName, stage + " " + failure + " after " + (tries + 1) + " attempts");
+			return Outcome.FAILED;
+		}
+		System.out.println(threadId + ":: " + stage + " " + failure + " for " + repoName + ", retrying in " + (RETRY_BACKOFF_MILLIS << tries) + " ms.");
+		return Outcome.RETRY;
+	}
+	
+	//Submits the task again once the backoff is over. The scheduled future goes in the list first, so anything waiting
+	//on the list also waits for the resubmitted task.
+	private static void retryLater(int tries, List<Future<?>> futures, Runnable task) {
+		futures.add(RETRY_SCHEDULER.schedule(()->futures.add(THREAD_POOL.submit(task)), RETRY_BACKOFF_MILLIS << tries, TimeUnit.MILLISECONDS));
+	}
+	
+	//A git step of a stage that may be retried. Returns false if it failed for good, throws if it is worth another attempt.
+	private static boolean runStep(int threadId, String command, File directory, Duration timeout, int gitThreads) throws IOException, InterruptedException, TimeoutException {
+		List<String> tail = new ArrayList<String>();
+		if(runProcess(threadId, command, directory, timeout, gitThreads, null, tail) == 0) return true;
+		
+		for (String line : tail) {
+			for (String marker : TRANSIENT_FAILURES) {
+				if(line.contains(marker)) throw new TransientFailureException(line.trim());
+			}
+		}
+		return false;
+	}
+	
+	private static void writeDeadLetters() throws IOException {
+		if(DEAD_LETTERS.isEmpty()) return;
+		
+		List<String> lines = new ArrayList<String>(DEAD_LETTERS.size());
+		for (Map.Entry<String,String> deadLetter : DEAD_LETTERS.entrySet()) {
+			lines.add(deadLetter.getKey() + "\t" + deadLetter.getValue());
+		}
+		Files.write(Paths.get(DEAD_LETTER_PATH), lines);
+		System.out.println(DEAD_LETTERS.size() + " repos ran out of retries. Written to: " + DEAD_LETTER_PATH);
+	}
+	
+	private static void verifyRepo(File bundleFile, File unbundledDir) {
+		int threadId = THREAD_ID_COUNTER.getAndIncrement();
+		String repoName = unbundledDir.getName();
+		
+		System.out.println(threadId + ":: Verifying repo: " + unbundledDir);
+		try {
+			//The pull fast-forwards the new repo to the bundle's HEAD, so the two should match exactly
+			List<String> bundleHeads = new ArrayList<String>();
+			if(runProcess(threadId, "git bundle list-heads \"" + bundleFile.getAbsolutePath() + "\"", unbundledDir, VERIFY_TIMEOUT, bundleHeads) > 0 || bundleHeads.isEmpty()) {
+				System.out.println(threadId + ":: Failed to list the heads of bundle: " + bundleFile);
+				VERIFY_RESULTS.put(repoName, "FAILED: git bundle list-heads");
+				return;
+			}
+			
+			String bundleHead = null;
+			for (String line : bundleHeads) {
+				if(line.endsWith(" HEAD")) {
+					bundleHead = line.substring(0, line.indexOf(' '));
+					break;
+				}
+			}
+			if(null == bundleHead) bundleHead = bundleHeads.get(0).substring(0, bundleHeads.get(0).indexOf(' '));
+			
+			List<String> repoHead = new ArrayList<String>();
+			if(runProcess(threadId, "git rev-parse HEAD", unbundledDir, VERIFY_TIMEOUT, repoHead) > 0 || repoHead.isEmpty()) {
+				System.out.println(threadId + ":: Failed to resolve HEAD in: " + unbundledDir);
+				VERIFY_RESULTS.put(repoName, "FAILED: git rev-parse HEAD");
+				return;
+			}
+			if(!bundleHead.equals(repoHead.get(0).trim())) {
+				System.out.println(threadId + ":: HEAD mismatch in " + unbundledDir + ", expected " + bundleHead + " got " + repoHead.get(0));
+				VERIFY_RESULTS.put(repoName, "FAILED: HEAD is " + repoHead.get(0).trim() + ", bundle HEAD is " + bundleHead);
+				return;
+			}
+			
+			if(runProcess(threadId, "git fsck --connectivity-only", unbundledDir, VERIFY_TIMEOUT) > 0) {
+				System.out.println(threadId + ":: Connectivity check failed in: " + unbundledDir);
+				VERIFY_RESULTS.put(repoName, "FAILED: git fsck --connectivity-only");
+				return;
+			}
+			
+			System.out.println(threadId + ":: Verification succeeded, deleting bundle: " + bundleFile);
+			VERIFY_RESULTS.put(repoName, "OK");
+			bundleFile.delete();
+		} catch (Throwable t) {
+			System.out.println(threadId + ":: ERROR during repo verification: " + t.getMessage());
+			t.printStackTrace(); //Don't throw a runtime exception, let the other threads run
+			VERIFY_RESULTS.put(repoName, "ERROR: " + t.getMessage());
+		}
+	}
+	
+	private static void writeVerificationResults() throws IOException {
+		List<String> lines = new ArrayList<String>(VERIFY_RESULTS.size());
+		int failed = 0;
+		for (Map.Entry<String,String> result : VERIFY_RESULTS.entrySet()) {
+			if(!result.getValue().equals("OK")) failed++;
+			lines.add(result.getKey() + "\t" + result.getValue());
+		}
+		Files.write(Paths.get(VERIFY_RESULTS_PATH), lines);
+		System.out.println("Verified " + VERIFY_RESULTS.size() + " repos, " + failed + " failed. Results written to: " + VERIFY_RESULTS_PATH);
+	}
+	
+	private static int runProcess(int threadId, String command, File directory, Duration timeout) throws IOException, InterruptedException, TimeoutException {
+		return runProcess(threadId, command, directory, timeout, gitThreadBudget(), null);
+	}
+	
+	private static int runProcess(int threadId, String command, File directory, Duration timeout, List<String> output) throws IOException, InterruptedException, TimeoutException {
+		return runProcess(threadId, command, directory, timeout, gitThreadBudget(), output);
+	}
+	
+	//If output is provided then all of the process output is collected into it, otherwise the tail is printed on failure
+	private static int runProcess(int threadId, String command, File directory, Duration timeout, int gitThreads, List<String> output) throws IOException, InterruptedException, TimeoutException {
+		return runProcess(threadId, command, directory, timeout, gitThreads, output, null);
+	}
+	
+	//The printed tail is also handed back through failureTail, so the caller can tell what went wrong
+	private static int runProcess(int threadId, String command, File directory, Duration timeout, int gitThreads, List<String> output, List<String> failureTail) throws IOException, InterruptedException, TimeoutException {
 		System.out.println(threadId + ":: Running command: " + command);
 		
+		GitProcessEvent event = new GitProcessEvent();
+		event.begin();
+		
 		StringTokenizer st = new StringTokenizer(command);
-        String[] cmdarray = new String[st.countTokens()];
-        for (int i = 0; st.hasMoreTokens(); i++) cmdarray[i] = st.nextToken();
+        List<String> cmdarray = new ArrayList<String>(st.countTokens());
+        while (st.hasMoreTokens()) cmdarray.add(st.nextToken());
+        if(cmdarray.get(0).equals("git")) cmdarray.addAll(1, GIT_PROFILE.configArgs(gitThreads));
         
-        final Process process = new ProcessBuilder(cmdarray)
+        ProcessBuilder processBuilder = new ProcessBuilder(cmdarray)
 	            .directory(directory)
-	            .redirectErrorStream(true)
-	            .start();
+	            .redirectErrorStream(true);
+        //Nobody is around to answer a credential prompt, fail instead of waiting forever
+        processBuilder.environment().put("GIT_TERMINAL_PROMPT", "0");
+        processBuilder.environment().put("GCM_INTERACTIVE", "never");
+        
+        final Process process = processBuilder.start();
+        OutputPump.Output processOutput = null;
         try {
-    		//Launch a separate thread to read the process output while waiting for it to terminate
-    		Thread readerThread = new Thread("Proc-Reader-" + threadId) {
-    			
-    			@Override
-    			public void run() {
-    				try(final BufferedReader stdInput = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-    					printErrorMessages(threadId, stdInput);
-    				}catch (Throwable t) {
-    					System.out.println(threadId + ":: Failed to read process output:" + t.getMessage());
-    				}
-    			}
-    		};
-    		readerThread.start();
+        	process.getOutputStream().close();
+        	
+    		//The shared pump reads the output, this thread only has to wait for the process
+    		processOutput = OUTPUT_PUMP.register(process, null == output ? OUTPUT_TAIL_BYTES : Integer.MAX_VALUE);
+    		if(!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+    			System.out.println(threadId + ":: Command timed out after " + timeout + ", killing the process tree: " + command);
+    			killProcessTree(process);
+    			printErrorMessages(threadId, processOutput.lines());
+    			throw new TimeoutException("Command timed out after " + timeout + ": " + command);
+    		}
     		
-    		//Wait for the main process to finish
-    		process.waitFor();
+    		if(!processOutput.awaitDrained(Duration.ofSeconds(60))) {
+    			System.out.println(threadId + ":: Process output is still open after exit. Abandoning it.");
+    		}
     		
-    		//Wait for the input stream reader thread to finish reading
-    		if(!readerThread.join(Duration.ofSeconds(60))) {
-    			System.out.println(threadId + ":: Reader thread is hung. Forcefully terminating.");
-    			readerThread.interrupt();
+    		final int exitCode = process.exitValue();
+    		event.exitCode = exitCode;
+    		if(null != output) {
+    			output.addAll(processOutput.lines());
+    		} else if (exitCode != 0) {
+    			printErrorMessages(threadId, processOutput.lines());
+    			if(null != failureTail) failureTail.addAll(processOutput.lines());
     		}
-    		return process.exitValue();
+    		return exitCode;
         } finally {
         	if (null != process) process.destroy(); 
+        	if(event.shouldCommit()) {
+        		event.command     = command;
+        		event.repo        = directory.getName();
+        		event.outputBytes = null == processOutput ? 0 : processOutput.getTotalBytes();
+        		event.commit();
+        	}
         }
 	}
 	
-	private static void printErrorMessages(int threadId, BufferedReader stdInput) throws IOException {
-		String s = null;
-		while ((s = stdInput.readLine()) != null) {
-		    System.out.println(threadId + ":: " + s);
+	//git pull starts several child processes of its own, killing only the parent would leave them running
+	private static void killProcessTree(Process process) {
+		process.descendants().forEach(ProcessHandle::destroyForcibly);
+		process.destroyForcibly();
+	}
+	
+	//Share the cores between the git processes that are allowed to run at the same time
+	private static int gitThreadBudget() {
+		return Math.max(1, THREAD_COUNT / GIT_JOBS.getLimit());
+	}
+	
+	private static void printErrorMessages(int threadId, List<String> lines) {
+		System.out.println(threadId + ":: Last " + lines.size() + " lines of process output:");
+		for (String line : lines) {
+		    System.out.println(threadId + ":: " + line);
+		}
+	}
+	
+	//All of the indexed bundles that haven't been unbundled, quarantined or moved away since
+	private static List<Bundle> listBundles() {
+		List<Bundle> bundles = new ArrayList<Bundle>();
+		for (Map.Entry<String, File> indexed : BUNDLE_INDEX.entrySet()) {
+			if (indexed.getValue().isFile()) bundles.add(new Bundle(indexed.getKey(), indexed.getValue()));
+		}
+		return bundles;
+	}
+	
+	//Indexes a bundle found in an export, under the repo name for its path within the export
+	private static String indexBundle(File bundleFile, Path exportRoot) throws IOException {
+		Path path = bundleFile.toPath().toAbsolutePath().normalize();
+		String repo = assignRepoName(exportRoot.toAbsolutePath().normalize().relativize(path).toString(), repoName(bundleFile));
+		BUNDLE_INDEX.put(repo, path.toFile());
+		return repo;
+	}
+	
+	//Tar entries are named the same way as the bundles of a hash-directory export, by their path within the export
+	private static String assignRepoName(TarArchiveEntry entry) throws IOException {
+		return assignRepoName(Paths.get(entry.getName()).normalize().toString(), repoName(Paths.get(entry.getName()).getFileName().toFile()));
+	}
+	
+	//Gives the bundle at the key the repo name it had before, or else one that was never given to another bundle and
+	//has no repo under it yet. The first one found keeps the plain name.
+	private static synchronized String assignRepoName(String key, String name) throws IOException {
+		loadRepoNames();
+		
+		//Relative to the export, so a re-export of the same repo keeps its name and replaces the repo as before
+		key = key.replace('\\', '/');
+		String repo = REPO_NAMES.get(key);
+		if(null == repo) {
+			repo = name;
+			for (int i = 2; isRepoNameTaken(repo, key); i++) repo = name + "_" + i;
+			if(!repo.equals(name)) System.out.println("Repo name " + name + " is already taken, restoring " + key + " as: " + repo);
+			
+			REPO_NAMES.put(key, repo);
+			NAMED_KEYS.put(repo, key);
+			Files.writeString(Paths.get(REPO_NAMES_PATH), repo + "\t" + key + System.lineSeparator(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		return repo;
+	}
+	
+	private static boolean isRepoNameTaken(String repo, String key) {
+		if(NAMED_KEYS.containsKey(repo)) return true;
+		
+		//Repos restored before the names were recorded came from a bundle of the same name, wherever it was
+		if(Paths.get(key).getFileName().toString().equals(repo + ".bundle")) return false;
+		for (Path root : PLACEMENT.roots()) {
+			if(Files.exists(root.resolve(repo))) return true;
+		}
+		return false;
+	}
+	
+	private static void loadRepoNames() throws IOException {
+		if(repoNamesLoaded) return;
+		repoNamesLoaded = true;
+		
+		Path repoNamesPath = Paths.get(REPO_NAMES_PATH);
+		if(!Files.exists(repoNamesPath)) return;
+		for (String line : Files.readAllLines(repoNamesPath)) {
+			String[] fields = line.split("\t");
+			if(fields.length != 2 || NAMED_KEYS.containsKey(fields[0])) continue;
+			REPO_NAMES.put(fields[1], fields[0]);
+			NAMED_KEYS.put(fields[0], fields[1]);
+		}
+		System.out.println("Loaded " + REPO_NAMES.size() + " repo names from: " + repoNamesPath);
+	}
+	
+	//Bundles are extracted and restored into the bundle directory under the name of their repo, which is taken as is
+	private static void indexBundleDir(Path bundleDir) throws IOException {
+		try (Stream<Path> paths = Files.list(bundleDir)) {
+			paths.forEach(path -> {
+				File bundleFile = path.toAbsolutePath().normalize().toFile();
+				if (bundleFile.isFile() && bundleFile.getName().indexOf(".bundle") > 0) BUNDLE_INDEX.put(repoName(bundleFile), bundleFile);
+			});
 		}
 	}
 	
 	private static void createBundleDirs() throws IOException {
 		List<Future<?>> futures = new ArrayList<Future<?>>();
 		
-		Files.list(bundlePath).forEach(path -> {
-			File bundleFile = path.toFile();
-			if (!bundleFile.isFile()) return;
-			
-			String fileName = bundleFile.getName();
-			int index = fileName.indexOf(".bundle");
-			if (index < 1) return;
+		//Placed up front and largest first, so that the size balancing sees the giant repos before the small ones
+		List<Bundle> bundles = listBundles();
+		bundles.sort(Comparator.comparingLong((Bundle bundle) -> bundle.file().length()).reversed());
+		PLACEMENT.load();
+		for (Path root : PLACEMENT.roots()) Files.createDirectories(root);
+		
+		//Duplicates are cloned from their original, which only hardlinks the objects if both are on the same disk
+		Map<Bundle, List<Bundle>> duplicates = DEDUPLICATE_BUNDLES ? findDuplicateBundles(bundles) : null;
+		for (Bundle bundle : bundles) {
+			if(null == duplicates) {
+				PLACEMENT.place(bundle.repo(), bundle.file().length());
+			} else if(duplicates.containsKey(bundle)) {
+				PLACEMENT.place(bundle.repo(), bundle.file().length());
+				for (Bundle duplicate : duplicates.get(bundle)) PLACEMENT.placeWith(duplicate.repo(), bundle.repo());
+			}
+		}
+		
+		bundles.forEach(bundle -> {
+			File bundleFile = bundle.file();
 			
 			futures.add(THREAD_POOL.submit(new Runnable() {
 				
@@ -183,7 +1125,7 @@ public class GitUnbundle {
 					int threadId = THREAD_ID_COUNTER.getAndIncrement();
 					
 					try {
-						File newDir = unbundledPath.resolve(bundleFile.getName().substring(0, index)).toFile();
+						File newDir = repoDir(bundle.repo());
 						if(newDir.exists()) {
 							if(FileUtils.isEmptyDirectory(newDir)) {
 								System.out.println(threadId + ":: Directory already exists and is empty: " + newDir);
@@ -196,17 +1138,62 @@ public class GitUnbundle {
 						newDir.mkdir();
 					} catch(Throwable t) {
 						System.out.println(threadId + ":: ERROR during directory creation: " + t.getMessage());
-						throw new RuntimeException(t); //Don't keep processing
+						if(!ISOLATE_FAILURES) throw new RuntimeException(t); //Don't keep processing
+						
+						//Move the bundle out of the way so that it isn't unbundled into a bad directory
+						quarantine(threadId, bundleFile, "Directory creation failed: " + t);
 					}
 				}
 			}));
 		});
 		
 		waitForTaskCompletion(futures);
-		System.out.println("All directories created.");
+		PLACEMENT.write();
+		System.out.println("All directories created. Repo locations written to: " + REPO_LOCATIONS_PATH);
+	}
+	
+	//Independent archives are read concurrently, but only one at a time from each disk so every disk is read sequentially
+	private static void flattenRawExports(List<Path> rootPaths, Path flattenedPath) throws IOException {
+		if(rootPaths.size() == 1) {
+			flattenRawExport(rootPaths.get(0), flattenedPath);
+			return;
+		}
+		
+		Map<FileStore, List<Path>> byDisk = new LinkedHashMap<FileStore, List<Path>>();
+		for (Path rootPath : rootPaths) {
+			if(!Files.exists(rootPath)) {
+				System.out.println("Warning: Raw export path does not exist: " + rootPath);
+				continue; //Allow continue
+			}
+			byDisk.computeIfAbsent(Files.getFileStore(rootPath), k -> new ArrayList<Path>()).add(rootPath);
+		}
+		if(byDisk.isEmpty()) return;
+		
+		//The readers are shared out between the disks, each archive on a disk gets them all in turn
+		final int readerThreads = Math.max(1, THREAD_COUNT / byDisk.size());
+		System.out.println("Reading " + rootPaths.size() + " raw exports from " + byDisk.size() + " disks with " + readerThreads + " reader threads each.");
+		
+		//The readers run on the main pool, so these have to wait on a pool of their own
+		ThreadPoolExecutor diskPool = new ThreadPoolExecutor(byDisk.size(), byDisk.size(), 100l, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (List<Path> diskPaths : byDisk.values()) {
+			futures.add(diskPool.submit(() -> {
+				for (Path rootPath : diskPaths) flattenRawExport(rootPath, flattenedPath, readerThreads);
+				return null;
+			}));
+		}
+		try {
+			waitForTaskCompletion(futures);
+		} finally {
+			diskPool.shutdown();
+		}
 	}
 	
 	private static void flattenRawExport(Path rootPath, Path flattenedPath) throws IOException {
+		flattenRawExport(rootPath, flattenedPath, THREAD_COUNT);
+	}
+	
+	private static void flattenRawExport(Path rootPath, Path flattenedPath, int readerThreads) throws IOException {
 		
 		File rootFile = rootPath.toFile();
 		if(!rootFile.exists())  {
@@ -215,24 +1202,51 @@ public class GitUnbundle {
 		}
 		
 		if(rootFile.isDirectory()) {
-			flattenDirStructure(rootPath, flattenedPath);
-		} else if (rootFile.getName().toLowerCase().endsWith(".tar")) {
-			extractTarFile(rootPath, flattenedPath);
-			//No exception means we can now delete the file.
-			System.out.println("Deleting raw export file: " + rootPath);
-			rootFile.delete();
+			indexDirStructure(rootPath);
+			if(RESTORE_LFS_OBJECTS) indexLfsObjects(rootPath);
+		} else if (isTar(rootPath)) {
+			int failures = FAILURES.size();
+			extractTarFile(rootPath, flattenedPath, readerThreads);
+			if(FAILURES.size() > failures) {
+				//Keep the file around so the quarantined entries can be looked at or extracted again
+				System.out.println("Some entries failed to extract, keeping raw export file: " + rootPath);
+				return;
+			}
+			if(isSelective()) {
+				System.out.println("Only some repos were selected, keeping raw export file: " + rootPath);
+				return;
+			}
+			//No exception means we can now delete the file, or all of its parts.
+			for (Path part : MultiPartInputStream.parts(rootPath)) {
+				System.out.println("Deleting raw export file: " + part);
+				part.toFile().delete();
+			}
+		} else if (MultiPartInputStream.isPart(rootPath)) {
+			System.out.println("Part of a split archive, read along with its first part: " + rootPath);
+		} else if (rootFile.getName().toLowerCase().endsWith(".bundle")) {
+			//A single bundle dropped on its own, typically in watch mode
+			System.out.println("Indexed bundle file " + rootPath + " as repo: " + indexBundle(rootFile, rootPath.toAbsolutePath().getParent()));
 		} else {
-			System.out.println("Unrecognized raw export file. Expected a .tar file, got: " + rootPath);
+			System.out.println("Unrecognized raw export file. Expected a .tar or .bundle file, got: " + rootPath);
 		}
 	}
 	
-	private static void extractTarFile(Path rootPath, Path flattenedPath) throws IOException {
+	private static void extractTarFile(Path rootPath, Path flattenedPath, int readerThreads) throws IOException {
 		List<Future<?>> futures = new ArrayList<Future<?>>();
+		loadManifest();
+		INVENTORY.load();
+		
+		//Split archives are read as one stream, entries can straddle the parts
+		final List<Path> parts = MultiPartInputStream.parts(rootPath);
+		long archiveSize = 0;
+		for (Path part : parts) archiveSize += Files.size(part);
+		PROGRESS.extractionStarted(archiveSize);
+		AtomicLong reportedBytes = new AtomicLong(0);
 		
 		//Used for co-ordination between threads
 		Set<String> entrySet = ConcurrentHashMap.newKeySet(1000);
 		
-		for (int i = 0; i < THREAD_COUNT; i++) {
+		for (int i = 0; i < readerThreads; i++) {
 			
 			futures.add(THREAD_POOL.submit(new Runnable() {
 				
@@ -242,95 +1256,634 @@ public class GitUnbundle {
 					
 					//Open the tar file once per thread, this may lead to a lot of contention and memory usage
 					//if the number of concurrent threads is high
-					try (FileInputStream fis = new FileInputStream(rootPath.toString());
-							BufferedInputStream bis = new BufferedInputStream(fis, TAR_BUFFER_SIZE);
-							WorkAroundTarArchiveInputStream tarStream = new WorkAroundTarArchiveInputStream(bis, fis, rootPath)) {
+					try (MultiPartInputStream archive = new MultiPartInputStream(parts);
+							PositionedInputStream bis = new PositionedInputStream(archive, isSelective() ? SCAN_BUFFER_SIZE : TAR_BUFFER_SIZE);
+							WorkAroundTarArchiveInputStream tarStream = new WorkAroundTarArchiveInputStream(bis, archive.size(), bis::position)) {
 				
 						System.out.println(threadId + ":: Reading tar file: " + rootPath);
 						TarArchiveEntry entry;
-					    while ((entry = tarStream.getNextEntry()) != null) {
+					    while ((entry = nextEntry(threadId, rootPath, tarStream)) != null) {
 					    	
 					    	if(!entrySet.add(entry.getName())) continue; //Another thread took this file
-					    			
+					    	
+					    	//Where the entry's data starts in the tar, used for restoring it later without a full pass. The tar
+					    	//stream's own count doesn't match the archive once sparse entries or pax headers have been read.
+					    	final long offset = bis.position();
+					    	
 					    	System.out.println(threadId + ":: Looking at: " + entry.getName());
 					    	if(entry.isFile() && entry.getName().endsWith(".bundle")) {
-					    		System.out.println(threadId + ":: Matched bundle file: " + entry.getName() + " " + entry.getRealSize() + " bytes");
-					    		
-					    		//Found a match, now extract it from the tar file
-					    		Path entryPath = Paths.get(entry.getName()).getFileName();
-					    		Path target = Paths.get(flattenedPath.toString(), entryPath.toString());
-					    		File targetFile = target.toFile();
-					    		
-					    		if (targetFile.exists()) {
-					    			if(targetFile.isDirectory()) {
-					    				System.out.println(threadId + ":: Bundle file conflicts with an existing directory: " + target);
-										throw new FileAlreadyExistsException(target.toString());
-					    			} else if (targetFile.length() == entry.getRealSize()) {
-										System.out.println(threadId + ":: Bundle file already exists, skipping: " + target);
-										continue;
-									} else {
-										System.out.println(threadId + ":: Bundle file conflicts with existing file, deleting: " + target);
-										targetFile.delete();
-									}
+					    		if(!isSelected(repoName(Paths.get(entry.getName()).getFileName().toFile()), entry.getRealSize())) {
+					    			System.out.println(threadId + ":: Not selected, skipping: " + entry.getName());
+					    			reportedBytes.addAndGet(entry.getSize());
+					    			PROGRESS.extracted(entry.getSize());
+					    			continue; //The data is skipped by seeking when the next entry is read
+					    		}
+					    		try {
+					    			extractBundleEntry(threadId, rootPath, tarStream, entry, offset, flattenedPath);
+					    			if(PAGE_CACHE_HINTS) archive.dontNeed(offset, entry.getSize());
+					    		} catch (IOException e) {
+					    			if(!ISOLATE_FAILURES) throw e;
+					    			
+					    			//The stream is still positioned within this entry, the next entry can be read as usual
+					    			System.out.println(threadId + ":: ERROR extracting " + entry.getName() + ", quarantining it: " + e.getMessage());
+					    			FAILURES.put(entry.getName(), "Extraction failed: " + e);
+					    		}
+					    	} else if(RESTORE_LFS_OBJECTS && entry.isFile() && isLfsObject(Paths.get(entry.getName()))) {
+					    		try {
+					    			extractLfsObject(threadId, tarStream, entry, rootPath, offset);
+					    			if(PAGE_CACHE_HINTS) archive.dontNeed(offset, entry.getSize());
+					    		} catch (IOException e) {
+					    			if(!ISOLATE_FAILURES) throw e;
+					    			System.out.println(threadId + ":: ERROR extracting LFS object " + entry.getName() + ": " + e.getMessage());
+					    			FAILURES.put(entry.getName(), "LFS object extraction failed: " + e);
 					    		}
-					    		
-				    			System.out.println(threadId + ":: Copying bundle file "  + entry.getName() + " to path " + flattenedPath);
-					    		Files.copy(tarStream, target);
 					    	}
+					    	reportedBytes.addAndGet(entry.getSize());
+					    	PROGRESS.extracted(entry.getSize());
 					    }
 					} catch(Throwable t) {
 						System.out.println(threadId + ":: ERROR with tar file extraction: " + t.getMessage());
-						throw new RuntimeException(t); //Don't keep processing
+						if(!ISOLATE_FAILURES) throw new RuntimeException(t); //Don't keep processing
+						
+						//The other threads will pick up any entries this one hasn't claimed yet
+						FAILURES.put(rootPath + " (reader " + threadId + ")", "Tar reading failed: " + t);
 					}
 				}
 			}));
 		}
 		
 		waitForTaskCompletion(futures);
+		PROGRESS.extracted(Math.max(0, archiveSize - reportedBytes.get())); //Tar headers and padding
+	}
+	
+	//A header that can't be read only costs the entries up to the next good one, not the rest of the tar
+	private static TarArchiveEntry nextEntry(int threadId, Path rootPath, WorkAroundTarArchiveInputStream tarStream) throws IOException {
+		while (true) {
+			try {
+				return tarStream.getNextEntry();
+			} catch (IOException e) {
+				if(!ISOLATE_FAILURES) throw e;
+				
+				//Every reader hits the same spot, so they all report it under the same key
+				final long offset = tarStream.getArchivePosition();
+				System.out.println(threadId + ":: ERROR reading tar header near offset " + offset + ": " + e.getMessage());
+				FAILURES.put(rootPath + " @ " + offset, "Unreadable tar header: " + e);
+				System.out.println(threadId + ":: Skipped " + tarStream.resynchronise() + " bytes to the next valid header");
+			}
+		}
+	}
+	
+	//The stored segments of a sparse entry, null for any other entry
+	private static List<Inventory.Segment> sparseMap(TarArchiveEntry entry) throws IOException {
+		if(!entry.isSparse()) return null;
+		
+		List<Inventory.Segment> sparseMap = new ArrayList<Inventory.Segment>();
+		for (TarArchiveStructSparse header : entry.getOrderedSparseHeaders()) sparseMap.add(new Inventory.Segment(header.getOffset(), header.getNumbytes()));
+		return sparseMap;
+	}
+	
+	private static void extractBundleEntry(int threadId, Path rootPath, WorkAroundTarArchiveInputStream tarStream, TarArchiveEntry entry, long offset, Path flattenedPath) throws IOException {
+		System.out.println(threadId + ":: Matched bundle file: " + entry.getName() + " " + entry.getRealSize() + " bytes");
+		
+		//Found a match, now extract it from the tar file. Same-named bundles in different directories get their own repo.
+		String repo = assignRepoName(entry);
+		Path target = flattenedPath.resolve(repo + ".bundle");
+		File targetFile = target.toFile();
+		
+		//The bytes read for the header are put back in front of the rest of the entry when copying
+		byte[] header = Inventory.readHeader(tarStream);
+		List<String> refs = Inventory.parseRefs(header);
+		INVENTORY.add(new Inventory.Entry(repo, rootPath.toString(), entry.getName(), offset, entry.getRealSize(), sparseMap(entry), refs));
+		
+		if(!isSelectedByRefs(refs)) {
+			System.out.println(threadId + ":: No selected refs, skipping: " + entry.getName());
+			return;
+		}
+		
+		//Archives are extracted at the same time, a re-export of the same repo in another one waits for this copy
+		synchronized (EXTRACT_LOCKS.computeIfAbsent(repo, r -> new Object())) {
+			if (targetFile.exists()) {
+				if(targetFile.isDirectory()) {
+					System.out.println(threadId + ":: Bundle file conflicts with an existing directory: " + target);
+					throw new FileAlreadyExistsException(target.toString());
+				} else if (isInManifest(targetFile, entry.getRealSize())) {
+					System.out.println(threadId + ":: Bundle file already exists, skipping: " + target);
+					return;
+				} else {
+					//Either a different file or a partial copy from a previous run
+					System.out.println(threadId + ":: Bundle file conflicts with existing file, deleting: " + target);
+					BUNDLE_MANIFEST.remove(targetFile.getName());
+					targetFile.delete();
+				}
+			}
+			
+			System.out.println(threadId + ":: Copying bundle file "  + entry.getName() + " to " + target);
+			try {
+				//The sequence closes each stream as it finishes with it, the tar stream has to stay open for the next entry
+				String digest = copyBundle(new SequenceInputStream(new ByteArrayInputStream(header), CloseShieldInputStream.wrap(tarStream)), target, rootPath.toString(), entry.getName(), offset);
+				addToManifest(targetFile, digest);
+			} catch (IOException e) {
+				if(targetFile.isFile() && !isInManifest(targetFile, entry.getRealSize())) targetFile.delete(); //Partial copy
+				throw e;
+			}
+		}
+	}
+	
+	//LFS objects are content addressed, so one copy in the store serves every repo and every export that has it
+	private static void extractLfsObject(int threadId, WorkAroundTarArchiveInputStream tarStream, TarArchiveEntry entry, Path rootPath, long offset) throws IOException {
+		String oid = Paths.get(entry.getName()).getFileName().toString();
+		Path target = lfsObjectPath(lfsStorePath, oid);
+		if(Files.isRegularFile(target) && Files.size(target) == entry.getRealSize()) {
+			System.out.println(threadId + ":: LFS object already in the store, skipping: " + oid);
+			LFS_OBJECTS.putIfAbsent(oid, target);
+			return;
+		}
+		
+		//Copied under a temporary name and only moved into the store once the content matches the name
+		Files.createDirectories(target.getParent());
+		Path temp = target.resolveSibling(oid + "." + threadId + ".tmp");
+		Files.deleteIfExists(temp);
+		String digest = copyBundle(CloseShieldInputStream.wrap(tarStream), temp, rootPath.toString(), entry.getName(), offset);
+		if(!digest.equals(oid)) {
+			Files.delete(temp);
+			throw new IOException("Content doesn't match the LFS object id, got sha256 " + digest);
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LFS_OBJECTS.put(oid, target);
+	}
+	
+	//git-lfs stores objects by their sha256, with any directory structure above them
+	private static boolean isLfsObject(Path path) {
+		return LFS_OID.matcher(path.getFileName().toString()).matches();
+	}
+	
+	//Same layout as .git/lfs/objects, so the store can also be used as an LFS storage directory directly
+	private static Path lfsObjectPath(Path objectsDir, String oid) {
+		return objectsDir.resolve(oid.substring(0, 2)).resolve(oid.substring(2, 4)).resolve(oid);
+	}
+	
+	//LFS objects in a directory export are used where they are, like the bundles. They are trusted to match their names.
+	private static void indexLfsObjects(Path rootPath) throws IOException {
+		try (Stream<Path> paths = Files.find(rootPath, Integer.MAX_VALUE, (treePath, attr) -> attr.isRegularFile() && isLfsObject(treePath))) {
+			paths.forEach(path -> LFS_OBJECTS.putIfAbsent(path.getFileName().toString(), path));
+		}
+		System.out.println("Indexed " + LFS_OBJECTS.size() + " LFS objects.");
+	}
+	
+	//Places the LFS objects of every repo restored in this batch, one repo per task
+	private static void restoreLfsObjects() throws IOException {
+		List<File> repos;
+		synchronized (LFS_REPOS) {
+			repos = new ArrayList<File>(LFS_REPOS);
+			LFS_REPOS.clear();
+		}
+		if(Files.isDirectory(lfsStorePath)) indexLfsObjects(lfsStorePath); //Includes the objects extracted in earlier runs
+		if(LFS_OBJECTS.isEmpty()) {
+			System.out.println("No LFS objects found in the exports, skipping the LFS stage.");
+			return;
+		}
+		
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (File repoDir : repos) futures.add(THREAD_POOL.submit(()->restoreRepoLfsObjects(repoDir)));
+		waitForTaskCompletion(futures);
+		System.out.println("Restored LFS objects for " + repos.size() + " repos.");
+	}
+	
+	private static void restoreRepoLfsObjects(File repoDir) {
+		int threadId = THREAD_ID_COUNTER.getAndIncrement();
+		try {
+			//One process lists the pointers in every commit, instead of a smudge process for every file
+			List<String> output = new ArrayList<String>();
+			GIT_JOBS.acquire();
+			try {
+				if(runProcess(threadId, "git lfs ls-files --long --all", repoDir, PULL_TIMEOUT, output) > 0) {
+					printErrorMessages(threadId, output);
+					FAILURES.put(repoDir.getName() + " (lfs)", "git lfs ls-files failed");
+					return;
+				}
+			} finally {
+				GIT_JOBS.release(0);
+			}
+			
+			//Lines are "oid [*|-] path", the same object can be listed for many paths and commits
+			Set<String> oids = new TreeSet<String>();
+			for (String line : output) {
+				String oid = line.trim().split(" ", 2)[0];
+				if(LFS_OID.matcher(oid).matches()) oids.add(oid);
+			}
+			if(oids.isEmpty()) return;
+			
+			Path objectsDir = repoDir.toPath().resolve(".git").resolve("lfs").resolve("objects");
+			int linked = 0, copied = 0, missing = 0;
+			for (String oid : oids) {
+				Path source = LFS_OBJECTS.get(oid);
+				if(null == source) {
+					missing++;
+					continue;
+				}
+				Path target = lfsObjectPath(objectsDir, oid);
+				if(Files.exists(target)) continue;
+				
+				Files.createDirectories(target.getParent());
+				try {
+					Files.createLink(target, source);
+					linked++;
+				} catch (IOException | UnsupportedOperationException e) {
+					//A different disk or a filesystem without hardlinks
+					Path temp = target.resolveSibling(oid + ".tmp");
+					Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+					Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+					copied++;
+				}
+			}
+			System.out.println(threadId + ":: Placed " + (linked + copied) + " LFS objects (" + copied + " copied) in " + repoDir + ", "
+					+ missing + " of " + oids.size() + " are not in the exports");
+			if(missing > 0) FAILURES.put(repoDir.getName() + " (lfs)", missing + " of " + oids.size() + " LFS objects are not in the exports");
+			
+			if(LFS_CHECKOUT && linked + copied > 0) {
+				GIT_JOBS.acquire();
+				try {
+					if(runProcess(threadId, "git lfs checkout", repoDir, PULL_TIMEOUT) > 0) {
+						System.out.println(threadId + ":: Failed to check out the LFS files in: " + repoDir);
+						FAILURES.put(repoDir.getName() + " (lfs)", "git lfs checkout failed");
+					}
+				} finally {
+					GIT_JOBS.release(0);
+				}
+			}
+		} catch (Throwable t) {
+			System.out.println(threadId + ":: ERROR restoring LFS objects: " + t.getMessage());
+			t.printStackTrace(); //The repo itself is still fine
+			FAILURES.put(repoDir.getName() + " (lfs)", "Restoring LFS objects failed: " + t);
+		}
+	}
+	
+	//Scans the tar headers and bundle headers only, nothing is extracted and the tar is kept
+	private static void indexTarFile(Path rootPath) throws IOException {
+		System.out.println("Indexing tar file: " + rootPath);
+		
+		int threadId = THREAD_ID_COUNTER.getAndIncrement();
+		try (MultiPartInputStream archive = new MultiPartInputStream(MultiPartInputStream.parts(rootPath));
+				PositionedInputStream bis = new PositionedInputStream(archive, SCAN_BUFFER_SIZE);
+				WorkAroundTarArchiveInputStream tarStream = new WorkAroundTarArchiveInputStream(bis, archive.size(), bis::position)) {
+			
+			TarArchiveEntry entry;
+			while ((entry = nextEntry(threadId, rootPath, tarStream)) != null) {
+				if(!entry.isFile() || !entry.getName().endsWith(".bundle")) continue;
+				
+				final long offset = bis.position();
+				List<String> refs = Inventory.parseRefs(Inventory.readHeader(tarStream));
+				String repo = assignRepoName(entry);
+				INVENTORY.add(new Inventory.Entry(repo, rootPath.toString(), entry.getName(), offset, entry.getRealSize(), sparseMap(entry), refs));
+				System.out.println("Indexed " + repo + ": " + entry.getRealSize() + " bytes, " + refs.size() + " refs");
+			}
+		}
+		System.out.println("Indexed " + INVENTORY.entries().size() + " bundles into: " + INVENTORY_PATH);
+	}
+	
+	private static void queryInventory(String field, String pattern) throws IOException {
+		INVENTORY.load();
+		List<Inventory.Entry> found = field.equalsIgnoreCase("ref") ? INVENTORY.findByRef(toMatcher(pattern)) : INVENTORY.findByRepo(toMatcher(pattern));
+		
+		for (Inventory.Entry entry : found) {
+			System.out.println(entry.repo() + "\t" + entry.size() + " bytes\t" + entry.archive() + " @ " + entry.offset());
+			for (String ref : entry.refs()) System.out.println("\t" + ref);
+		}
+		System.out.println(found.size() + " matching repos.");
+	}
+	
+	//Extracts the matching repos straight from their offsets in the tar, without reading anything else
+	private static void restoreFromInventory(String[] patterns) throws IOException {
+		loadManifest();
+		INVENTORY.load();
+		
+		Map<String, Inventory.Entry> selected = new LinkedHashMap<String, Inventory.Entry>();
+		for (String pattern : patterns) {
+			for (Inventory.Entry entry : INVENTORY.findByRepo(toMatcher(pattern))) selected.put(entry.repo(), entry);
+		}
+		System.out.println("Restoring " + selected.size() + " repos from the inventory.");
+		selected.values().forEach(entry -> PROGRESS.extractionStarted(entry.size()));
+		
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (Inventory.Entry entry : selected.values()) {
+			futures.add(THREAD_POOL.submit(()->restoreEntry(entry, bundlePath)));
+		}
+		waitForTaskCompletion(futures);
+	}
+	
+	private static void restoreEntry(Inventory.Entry entry, Path targetPath) {
+		int threadId = THREAD_ID_COUNTER.getAndIncrement();
+		File targetFile = targetPath.resolve(entry.repo() + ".bundle").toFile();
+		try {
+			if(targetFile.exists()) {
+				if(isInManifest(targetFile, entry.size())) {
+					System.out.println(threadId + ":: Bundle file already exists, skipping: " + targetFile);
+					return;
+				}
+				BUNDLE_MANIFEST.remove(targetFile.getName());
+				targetFile.delete();
+			}
+			
+			System.out.println(threadId + ":: Copying " + entry.size() + " bytes at offset " + entry.offset() + " of " + entry.archive() + " to " + targetFile);
+			try (MultiPartInputStream archive = new MultiPartInputStream(MultiPartInputStream.parts(Paths.get(entry.archive())))) {
+				if(archive.skip(entry.offset()) != entry.offset()) throw new IOException("Archive is shorter than the offset " + entry.offset());
+				//A sparse entry only has its segments stored, the holes are filled back in with zeros
+				BufferedInputStream in = new BufferedInputStream(entry.sparse() ? new SparseInputStream(new BufferedInputStream(archive, COPY_BUFFER_SIZE), entry.sparseMap(), entry.size()) : archive, COPY_BUFFER_SIZE);
+				
+				//An inventory from another version of the archive, or a bad offset, would otherwise be copied out as garbage
+				in.mark(Inventory.SIGNATURE_LENGTH);
+				if(!Inventory.isSignature(in.readNBytes(Inventory.SIGNATURE_LENGTH))) throw new IOException("No bundle signature at offset " + entry.offset() + " of " + entry.archive());
+				in.reset();
+				
+				String digest = copyBundle(new BoundedInputStream(in, entry.size()), targetFile.toPath(), entry.archive(), entry.entryName(), entry.offset());
+				if(PAGE_CACHE_HINTS) archive.dontNeed(entry.offset(), entry.storedSize());
+				if(targetFile.length() != entry.size()) throw new IOException("Archive ended early, got " + targetFile.length() + " of " + entry.size() + " bytes");
+				addToManifest(targetFile, digest);
+			}
+		} catch (Throwable t) {
+			System.out.println(threadId + ":: ERROR restoring " + entry.repo() + ": " + t.getMessage());
+			targetFile.delete();
+			if(!ISOLATE_FAILURES) throw new RuntimeException(t); //Don't keep processing
+			FAILURES.put(entry.entryName(), "Restore failed: " + t);
+		} finally {
+			PROGRESS.extracted(entry.size());
+		}
+	}
+	
+	//Indexes the exports and shares them out as work units, then waits for the workers to get through them
+	private static void coordinate() throws IOException, InterruptedException {
+		INVENTORY.clear();
+		for (Path rawExportPath : rawExportPaths) indexTarFile(rawExportPath);
+		
+		WorkQueue queue = new WorkQueue(workQueuePath, "coordinator", LEASE_TIMEOUT_MS);
+		int units = queue.publish(INVENTORY.entries(), WORK_UNIT_BYTES);
+		System.out.println("Published " + units + " work units to: " + workQueuePath);
+		
+		while (!queue.allDone()) {
+			Thread.sleep(PROGRESS_INTERVAL_MS);
+			System.out.println("WORK QUEUE :: " + queue.status());
+		}
+		System.out.println("All work units are done.");
 	}
 	
-	private static void flattenDirStructure(Path rootPath, Path flattenedPath) throws IOException {
+	//Claims work units until there are none left, restoring their bundles by offset and unbundling them locally.
+	//Run one per host, or several on one host with different names.
+	private static void work(String workerId) throws IOException, InterruptedException {
+		WorkQueue queue = new WorkQueue(workQueuePath, workerId, LEASE_TIMEOUT_MS);
+		
+		//Each worker has its own bundle directory so that workers on the same host don't unbundle each other's bundles.
+		//Named workers pick their bundles back up after a restart.
+		Path workerBundlePath = bundlePath.resolve(workerId);
+		Files.createDirectories(workerBundlePath);
+		loadManifest();
+		
+		System.out.println("Worker " + workerId + " taking work from: " + workQueuePath);
+		queue.startHeartbeat();
+		try {
+			while (true) {
+				List<WorkQueue.Unit> batch = new ArrayList<WorkQueue.Unit>();
+				for (String unit : queue.units()) {
+					if(batch.size() >= WORKER_BATCH_UNITS) break;
+					WorkQueue.Unit claimed = queue.tryClaim(unit);
+					if(null == claimed) continue;
+					batch.add(claimed);
+					
+					//A unit bigger than WORK_UNIT_BYTES is a single giant bundle. The units are claimed largest first, so
+					//taking one of those at a time spreads the giants over the workers instead of giving them all to the first.
+					if(claimed.bytes() > WORK_UNIT_BYTES) break;
+				}
+				
+				if(batch.isEmpty()) {
+					if(queue.allDone()) break;
+					
+					//Nothing left to claim, help out with a unit that another worker claimed but hasn't got to yet
+					for (String unit : queue.units()) {
+						WorkQueue.Unit stolen = queue.trySteal(unit);
+						if(null == stolen) continue;
+						batch.add(stolen);
+						break;
+					}
+				}
+				
+				if(batch.isEmpty()) {
+					//Not published yet, or everything left is in progress. Wait for it to be done or for a lease to expire.
+					Thread.sleep(queue.pollMillis());
+					continue;
+				}
+				processWorkUnits(queue, batch, workerBundlePath);
+			}
+		} finally {
+			queue.stopHeartbeat();
+		}
+		System.out.println("Worker " + workerId + ": all work units are done.");
+	}
+	
+	private static void processWorkUnits(WorkQueue queue, List<WorkQueue.Unit> batch, Path workerBundlePath) throws IOException {
+		//A unit is only started when its first bundle comes up, until then an idle worker can take it over
+		Map<String, Boolean> started = new ConcurrentHashMap<String, Boolean>();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (WorkQueue.Unit unit : batch) {
+			for (Inventory.Entry entry : unit.entries()) {
+				PROGRESS.extractionStarted(entry.size());
+				futures.add(THREAD_POOL.submit(()->{
+					if(started.computeIfAbsent(unit.name(), queue::start)) {
+						restoreEntry(entry, workerBundlePath);
+					} else {
+						PROGRESS.extracted(entry.size()); //Done by the worker that took it over
+					}
+				}));
+			}
+		}
+		waitForTaskCompletion(futures);
+		
+		//Only the worker's own directory is indexed, the shared bundle directory holds the other workers' bundles
+		processBundles(workerBundlePath);
+		
+		//Failed bundles are in the failure report, retrying the unit on another worker wouldn't help
+		for (WorkQueue.Unit unit : batch) {
+			if(started.computeIfAbsent(unit.name(), queue::start)) queue.complete(unit);
+		}
+	}
+	
+	private static boolean isSelective() {
+		return INCLUDE_PATTERNS.length > 0 || EXCLUDE_PATTERNS.length > 0 || INCLUDE_REF_PATTERNS.length > 0
+				|| MIN_BUNDLE_BYTES > 0 || MAX_BUNDLE_BYTES < Long.MAX_VALUE;
+	}
+	
+	private static boolean isSelected(String repoName, long size) {
+		if(size < MIN_BUNDLE_BYTES || size > MAX_BUNDLE_BYTES) return false;
+		
+		Path repo = Paths.get(repoName);
+		for (String pattern : EXCLUDE_PATTERNS) {
+			if(toMatcher(pattern).matches(repo)) return false;
+		}
+		if(INCLUDE_PATTERNS.length == 0) return true;
+		for (String pattern : INCLUDE_PATTERNS) {
+			if(toMatcher(pattern).matches(repo)) return true;
+		}
+		return false;
+	}
+	
+	private static boolean isSelectedByRefs(List<String> refs) {
+		if(INCLUDE_REF_PATTERNS.length == 0) return true;
+		for (String pattern : INCLUDE_REF_PATTERNS) {
+			PathMatcher matcher = toMatcher(pattern);
+			for (String ref : refs) {
+				if(matcher.matches(Paths.get(ref.substring(ref.indexOf(' ') + 1)))) return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isSelectedByRefs(Path bundle) {
+		if(INCLUDE_REF_PATTERNS.length == 0) return true;
+		try (InputStream in = Files.newInputStream(bundle)) {
+			return isSelectedByRefs(Inventory.parseRefs(Inventory.readHeader(in)));
+		} catch (IOException e) {
+			System.out.println("Failed to read the bundle header of " + bundle + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	//Plain patterns are globs, prefix with "regex:" for a regular expression
+	private static PathMatcher toMatcher(String pattern) {
+		return FileSystems.getDefault().getPathMatcher(pattern.startsWith("glob:") || pattern.startsWith("regex:") ? pattern : "glob:" + pattern);
+	}
+	
+	//Records the copy as a flight recorder event, to be lined up with the tar scanning and git events
+	private static String copyBundle(InputStream in, Path target, String archive, String entryName, long offset) throws IOException {
+		BundleCopyEvent event = new BundleCopyEvent();
+		event.begin();
+		String digest = copyAndHash(in, target);
+		if(event.shouldCommit()) {
+			event.entryName = entryName;
+			event.archive   = archive;
+			event.offset    = offset;
+			event.bytes     = target.toFile().length();
+			event.commit();
+		}
+		
+		//Written back and dropped, it won't be read until the unbundling stage
+		if(PAGE_CACHE_HINTS) PageCache.dontNeed(target, 0, 0);
+		return digest;
+	}
+	
+	//Copies the current entry out of the tar stream, hashing it on the way through so the data is only read once
+	private static String copyAndHash(InputStream in, Path target) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e); //Every JVM is required to support SHA-256
+		}
+		
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				OutputStream out = Channels.newOutputStream(channel)) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+			}
+			//Dirty pages aren't dropped from the page cache, so they have to be on disk before the hint is given
+			if(PAGE_CACHE_HINTS && PageCache.isAvailable()) channel.force(false);
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+	
+	private static synchronized void loadManifest() throws IOException {
+		if(manifestLoaded) return;
+		manifestLoaded = true;
+		
+		if(!Files.exists(manifestPath)) return;
+		
+		//The manifest is append only, later lines replace earlier ones for the same bundle
+		for (String line : Files.readAllLines(manifestPath)) {
+			String[] fields = line.split("\t");
+			if(fields.length != 4) continue;
+			BUNDLE_MANIFEST.put(fields[0], new ManifestEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+		}
+		System.out.println("Loaded " + BUNDLE_MANIFEST.size() + " entries from bundle manifest: " + manifestPath);
+	}
+	
+	private static synchronized void addToManifest(File bundleFile, String digest) throws IOException {
+		ManifestEntry entry = new ManifestEntry(bundleFile.length(), bundleFile.lastModified(), digest);
+		BUNDLE_MANIFEST.put(bundleFile.getName(), entry);
+		Files.writeString(manifestPath, bundleFile.getName() + "\t" + entry.size() + "\t" + entry.lastModified() + "\t" + entry.digest() + System.lineSeparator(),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+	
+	//A bundle can only be reused if it was completely copied and hasn't been touched since
+	private static boolean isInManifest(File bundleFile, long expectedSize) {
+		ManifestEntry entry = BUNDLE_MANIFEST.get(bundleFile.getName());
+		return null != entry && entry.size() == expectedSize && bundleFile.length() == expectedSize
+				&& bundleFile.lastModified() == entry.lastModified();
+	}
+	
+	//Bundles in a hash-directory export are left where they are, only their paths are indexed
+	private static void indexDirStructure(Path rootPath) throws IOException {
 		//Walk the entire directory tree, up to 4 deep, looking for bundle files
 		System.out.println("Walking directory tree, starting at: " + rootPath);
-		Files.find(rootPath, 4, (treePath, attr) -> {
+		List<Path> found = new ArrayList<Path>();
+		try (Stream<Path> paths = Files.find(rootPath, 4, (treePath, attr) -> {
 			System.out.println("Looking at: " + treePath);
-			if(treePath.toString().toLowerCase().endsWith(".bundle")) {
+			if(attr.isRegularFile() && treePath.toString().toLowerCase().endsWith(".bundle")) {
 				System.out.println("Matched bundle file: " + treePath);
-				return true;
+				return isSelected(repoName(treePath.toFile()), attr.size()) && isSelectedByRefs(treePath);
 			}
 			return false;
-		}).forEach(matchedPath -> {
-			//Move all the bundle files that we matched to the flattened path
-			System.out.println("Moving bundle file " + matchedPath + " to path " + flattenedPath);
-			File matchedFile = matchedPath.toFile();
-			Path target = Paths.get(flattenedPath.toString(), matchedFile.getName());
-			try {
-				Files.move(matchedPath,target);
-			} catch (FileAlreadyExistsException e) {
-				File targetFile = target.toFile();
-				if(!targetFile.isDirectory() && (targetFile.length() == matchedFile.length())) {
-					System.out.println("Bundle file already exists, skipping: " + target);
-				} else {
-					System.out.println("Bundle file conflicts with existing file or directory: " + target);
-					throw new RuntimeException(e); //Don't keep processing
-				}
-			} catch (IOException e) {
-				throw new RuntimeException(e); //Don't keep processing
-			}
-		});
+		})) {
+			paths.forEach(found::add);
+		}
+		
+		//Sorted so that colliding names are handed out in a predictable order the first time they are seen
+		Collections.sort(found);
+		for (Path matchedPath : found) {
+			System.out.println("Indexed bundle file " + matchedPath + " as repo: " + indexBundle(matchedPath.toFile(), rootPath));
+		}
 	}
 
+	private static void quarantine(int threadId, File bundleFile, String reason) {
+		FAILURES.put(bundleFile.getName(), reason);
+		try {
+			Files.createDirectories(quarantinePath);
+			Files.move(bundleFile.toPath(), quarantinePath.resolve(bundleFile.getName()), StandardCopyOption.REPLACE_EXISTING);
+			System.out.println(threadId + ":: Quarantined bundle file: " + bundleFile);
+		} catch (IOException e) {
+			System.out.println(threadId + ":: Failed to quarantine bundle file " + bundleFile + ": " + e.getMessage());
+		}
+	}
+	
+	private static void reportFailures() throws IOException {
+		if(FAILURES.isEmpty()) return;
+		
+		List<String> lines = new ArrayList<String>(FAILURES.size());
+		for (Map.Entry<String,String> failure : FAILURES.entrySet()) {
+			lines.add(failure.getKey() + "\t" + failure.getValue());
+			System.out.println("Failed: " + failure.getKey() + " - " + failure.getValue());
+		}
+		Files.write(Paths.get(FAILURE_REPORT_PATH), lines);
+		System.out.println(FAILURES.size() + " entries or bundles failed and were skipped. Written to: " + FAILURE_REPORT_PATH);
+	}
+	
+	//Tasks may add more futures to the list while it is being waited on, so walk it by index
 	private static void waitForTaskCompletion(List<Future<?>> futures) {
-		futures.forEach(f->{
+		for (int i = 0; i < futures.size(); i++) {
+			Future<?> f = futures.get(i);
 			try {
 				f.get();
 			} catch (InterruptedException e) {
 				System.out.println("Failed to wait for completion of tasks.");
 				throw new RuntimeException(e); 
 			} catch (ExecutionException e) {
-				System.out.println("Task execution failed.");
-				throw new RuntimeException(e);
+				if(!ISOLATE_FAILURES) {
+					System.out.println("Task execution failed.");
+					throw new RuntimeException(e);
+				}
+				//Keep waiting, the other tasks are still doing useful work
+				System.out.println("Task execution failed, continuing with the remaining tasks: " + e.getCause());
+				FAILURES.put("Task " + Integer.toHexString(System.identityHashCode(f)), "Task execution failed: " + e.getCause());
 			}
-		});
+		}
 	}
 }
@@ -0,0 +1,213 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * On-disk index of the bundles in an export: where each one lives in its tar, how big it is and which refs it
+ * contains. Written while the tar headers and bundle headers are scanned, so that analysts can find repos and
+ * restore just a handful of them by offset without processing the whole export.
+ *
+ * The file is tab separated and append only, later lines replace earlier ones for the same entry of the same archive.
+ * Bundles with the same file name in different directories are told apart by their repo name, which gets a suffix.
+ */
+public class Inventory {
+
+	//Large monorepos can have hundreds of thousands of refs, anything bigger than this isn't a bundle header
+	private static final int MAX_HEADER_BYTES = 64*1024*1024;
+	private static final int HEADER_CHUNK     = 64*1024;
+
+	//Every bundle starts with one of these lines
+	private static final String[] SIGNATURES = {"# v2 git bundle\n", "# v3 git bundle\n"};
+	public  static final int      SIGNATURE_LENGTH = SIGNATURES[0].length();
+
+	/**
+	 * A stretch of a sparse entry that is stored in the archive, everything else is a hole
+	 */
+	public record Segment(long offset, long length) {
+
+		public long end() {
+			return offset + length;
+		}
+	}
+
+	/**
+	 * @param offset    where the entry's data starts in the archive
+	 * @param size      size of the bundle, holes included
+	 * @param sparseMap the stored segments of a sparse entry in order, null if the entry isn't sparse
+	 * @param refs      "sha refname" for every ref in the bundle header
+	 */
+	public record Entry(String repo, String archive, String entryName, long offset, long size, List<Segment> sparseMap, List<String> refs) {
+
+		public boolean sparse() {
+			return null != sparseMap;
+		}
+
+		//How much of the archive the entry's data takes up
+		public long storedSize() {
+			if(!sparse()) return size;
+			long stored = 0;
+			for (Segment segment : sparseMap) stored += segment.length();
+			return stored;
+		}
+
+		String toLine() {
+			//Ref names can't contain spaces or colons
+			List<String> packedRefs = new ArrayList<String>(refs.size());
+			for (String ref : refs) packedRefs.add(ref.replace(' ', ':'));
+
+			List<String> packedSegments = new ArrayList<String>();
+			if(sparse()) {
+				for (Segment segment : sparseMap) packedSegments.add(segment.offset() + ":" + segment.length());
+			}
+			return repo + "\t" + archive + "\t" + entryName + "\t" + offset + "\t" + size + "\t" + (sparse() ? String.join(",", packedSegments) : "false")
+					+ "\t" + String.join(" ", packedRefs);
+		}
+
+		static Entry fromLine(String line) {
+			String[] fields = line.split("\t", -1);
+			if(fields.length != 7) return null;
+			if(fields[5].equals("true")) return null; //Written before the sparse map was kept, the archive has to be indexed again
+
+			List<Segment> sparseMap = null;
+			if(!fields[5].equals("false")) {
+				sparseMap = new ArrayList<Segment>();
+				if(!fields[5].isEmpty()) {
+					for (String segment : fields[5].split(",")) {
+						int colon = segment.indexOf(':');
+						sparseMap.add(new Segment(Long.parseLong(segment.substring(0, colon)), Long.parseLong(segment.substring(colon + 1))));
+					}
+				}
+			}
+
+			List<String> refs = new ArrayList<String>();
+			if(!fields[6].isEmpty()) {
+				for (String ref : fields[6].split(" ")) refs.add(ref.replace(':', ' '));
+			}
+			return new Entry(fields[0], fields[1], fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4]), sparseMap, refs);
+		}
+	}
+
+	private final Path path;
+	private final Map<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+	private boolean loaded = false;
+
+	public Inventory(Path path) {
+		this.path = path;
+	}
+
+	public synchronized void load() throws IOException {
+		if(loaded) return;
+		loaded = true;
+
+		if(!Files.exists(path)) return;
+		for (String line : Files.readAllLines(path)) {
+			Entry entry = Entry.fromLine(line);
+			if(null != entry) entries.put(key(entry), entry);
+		}
+		System.out.println("Loaded " + entries.size() + " entries from inventory: " + path);
+	}
+
+	//Start over, used when an archive is indexed from scratch
+	public synchronized void clear() throws IOException {
+		entries.clear();
+		loaded = true;
+		Files.deleteIfExists(path);
+	}
+
+	public synchronized void add(Entry entry) throws IOException {
+		entries.put(key(entry), entry);
+		Files.writeString(path, entry.toLine() + System.lineSeparator(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	//Repo names can repeat across archives, a re-export of the same repo in another archive is a separate entry
+	private static String key(Entry entry) {
+		return entry.archive() + "\t" + entry.entryName();
+	}
+
+	public Collection<Entry> entries() {
+		return entries.values();
+	}
+
+	public List<Entry> findByRepo(PathMatcher matcher) {
+		List<Entry> found = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if(matcher.matches(Paths.get(entry.repo()))) found.add(entry);
+		}
+		return found;
+	}
+
+	public List<Entry> findByRef(PathMatcher matcher) {
+		List<Entry> found = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			for (String ref : entry.refs()) {
+				if(matcher.matches(Paths.get(ref.substring(ref.indexOf(' ') + 1)))) {
+					found.add(entry);
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Reads from the start of a bundle until the end of its header. May read past the header into the pack data,
+	 * the caller is expected to put the returned bytes back in front of the rest of the stream if it needs them.
+	 */
+	public static byte[] readHeader(InputStream in) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_CHUNK);
+		byte[] chunk = new byte[HEADER_CHUNK];
+		int searchFrom = 0;
+
+		while (header.size() < MAX_HEADER_BYTES) {
+			int read = in.read(chunk);
+			if(read < 0) break;
+			header.write(chunk, 0, read);
+
+			//The header ends with an empty line
+			byte[] data = header.toByteArray();
+			for (int i = Math.max(1, searchFrom); i < data.length; i++) {
+				if(data[i] == '\n' && data[i - 1] == '\n') return data;
+			}
+			searchFrom = data.length;
+		}
+		return header.toByteArray();
+	}
+
+	public static boolean isSignature(byte[] data) {
+		String start = new String(data, StandardCharsets.US_ASCII);
+		for (String signature : SIGNATURES) {
+			if(start.startsWith(signature)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return "sha refname" for every ref in the header, empty if this doesn't look like a bundle
+	 */
+	public static List<String> parseRefs(byte[] header) {
+		List<String> refs = new ArrayList<String>();
+		String[] lines = new String(header, StandardCharsets.UTF_8).split("\n");
+		if(lines.length == 0 || !lines[0].startsWith("# v") || !lines[0].endsWith("git bundle")) return refs;
+
+		for (String line : Arrays.copyOfRange(lines, 1, lines.length)) {
+			if(line.isEmpty()) break; //End of the header
+			if(line.startsWith("-") || line.startsWith("@")) continue; //Prerequisites and capabilities
+
+			int space = line.indexOf(' ');
+			if(space > 0) refs.add(line);
+		}
+		return refs;
+	}
+}
@@ -0,0 +1,183 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Reads the parts of a split archive (extract.tar.001, extract.tar.002, ...) as one continuous stream.
+ *
+ * Entries that straddle a part boundary are read straight through, and skips seek to the right place in the right
+ * part instead of reading. Positions are logical, counted from the start of the first part, so tar offsets recorded
+ * against a split archive work the same way as offsets into a single file.
+ */
+public class MultiPartInputStream extends InputStream {
+
+	//Split tars only. The part number is at least three digits, as written by split, 7-Zip and most backup tools.
+	private static final Pattern PART_PATTERN = Pattern.compile("(.+\\.tar)\\.(\\d{3,})", Pattern.CASE_INSENSITIVE);
+
+	private static final int RECORD_BYTES         = 512;
+	private static final int END_OF_ARCHIVE_BYTES = 2 * RECORD_BYTES;
+
+	private final List<Path> parts;
+	private final long[]     partStarts; //Logical offset of the first byte of each part
+	private final long       size;
+
+	private FileInputStream current;
+	private int  partIndex = -1;
+	private long position  = 0;
+
+	public MultiPartInputStream(List<Path> parts) throws IOException {
+		this.parts = new ArrayList<Path>(parts);
+		this.partStarts = new long[parts.size()];
+
+		long total = 0;
+		for (int i = 0; i < parts.size(); i++) {
+			partStarts[i] = total;
+			total += Files.size(parts.get(i));
+		}
+		this.size = total;
+		seek(0);
+	}
+
+	/**
+	 * @return every part of the archive in order if this is a split archive, otherwise just the archive itself
+	 */
+	public static List<Path> parts(Path archive) throws IOException {
+		Matcher matcher = PART_PATTERN.matcher(archive.getFileName().toString());
+		if(!matcher.matches()) return List.of(archive);
+
+		String baseName = matcher.group(1);
+		List<Path> parts = new ArrayList<Path>();
+		try (Stream<Path> siblings = Files.list(archive.toAbsolutePath().getParent())) {
+			siblings.forEach(sibling -> {
+				Matcher siblingMatcher = PART_PATTERN.matcher(sibling.getFileName().toString());
+				if(siblingMatcher.matches() && siblingMatcher.group(1).equals(baseName)) parts.add(sibling);
+			});
+		}
+		parts.sort(Comparator.comparingLong(MultiPartInputStream::partNumber));
+
+		//A missing part would silently shift every offset after it
+		for (int i = 0; i < parts.size(); i++) {
+			if(partNumber(parts.get(i)) != i + 1) throw new IOException("Split archive " + baseName + " is missing part " + (i + 1));
+		}
+		return parts;
+	}
+
+	public static boolean isPart(Path path) {
+		return PART_PATTERN.matcher(path.getFileName().toString()).matches();
+	}
+
+	//The first part stands for the whole archive, the other parts are only ever read through it
+	public static boolean isFirstPart(Path path) {
+		return isPart(path) && partNumber(path) == 1;
+	}
+
+	/**
+	 * A split archive can settle with parts still to come, so it is only taken as whole once its last part ends with the
+	 * tar end-of-archive marker, two records of zeros, and none of the parts before it are missing.
+	 */
+	public static boolean hasEndOfArchive(Path archive) {
+		try (MultiPartInputStream in = new MultiPartInputStream(parts(archive))) {
+			if(in.size() < END_OF_ARCHIVE_BYTES || in.size() % RECORD_BYTES != 0) return false;
+
+			byte[] tail = new byte[END_OF_ARCHIVE_BYTES];
+			in.skip(in.size() - END_OF_ARCHIVE_BYTES);
+			int read = 0;
+			while (read < tail.length) read += in.read(tail, read, tail.length - read);
+			for (byte b : tail) {
+				if(b != 0) return false;
+			}
+			return true;
+		} catch (IOException e) {
+			return false; //A part missing in between, or one that went away
+		}
+	}
+
+	private static long partNumber(Path part) {
+		Matcher matcher = PART_PATTERN.matcher(part.getFileName().toString());
+		matcher.matches();
+		return Long.parseLong(matcher.group(2));
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public long position() {
+		return position;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if(length == 0) return 0;
+		if(position >= size) return -1;
+		if(position >= partEnd(partIndex)) seek(position); //Move on to the next part
+
+		int read = current.read(buffer, offset, (int) Math.min(length, partEnd(partIndex) - position));
+		if(read < 0) throw new IOException("Part " + parts.get(partIndex) + " is shorter than when the archive was opened");
+		position += read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if(n <= 0) return 0;
+		long target = Math.min(size, position + n);
+		long skipped = target - position;
+		seek(target);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, size - position);
+	}
+
+	private void seek(long target) throws IOException {
+		//The last part starting at or before the target, which skips over any empty parts
+		int index = 0;
+		for (int i = 1; i < partStarts.length && partStarts[i] <= target; i++) index = i;
+
+		if(index != partIndex) {
+			if(null != current) current.close();
+			current   = new FileInputStream(parts.get(index).toFile());
+			partIndex = index;
+		}
+		current.getChannel().position(target - partStarts[index]);
+		position = target;
+	}
+
+	/**
+	 * Drops a logical range of the archive from the page cache, across as many parts as it covers.
+	 */
+	public void dontNeed(long offset, long length) {
+		long end = Math.min(size, offset + length);
+		for (int i = 0; i < parts.size(); i++) {
+			long start = Math.max(offset, partStarts[i]);
+			long stop  = Math.min(end, partEnd(i));
+			if(start < stop) PageCache.dontNeed(parts.get(i), start - partStarts[i], stop - start);
+		}
+	}
+
+	private long partEnd(int index) {
+		return index + 1 < partStarts.length ? partStarts[index + 1] : size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(null != current) current.close();
+	}
+}
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the output of every child process from a single shared thread instead of one reader thread per process.
+ *
+ * Process pipes are not selectable channels, so the pump polls each registered stream with
+ * {@link InputStream#available()} and only reads what is already there, it never blocks on a single process.
+ * Each process gets a ring buffer that keeps only the last few KB of output for error reporting, unless the
+ * output is being captured in full.
+ */
+public class OutputPump {
+
+	private static final int  READ_BUFFER_SIZE = 64*1024;
+	private static final long IDLE_POLL_MILLIS = 20;
+
+	private final ConcurrentLinkedQueue<Output> active = new ConcurrentLinkedQueue<Output>();
+	private final Object registered = new Object();
+	private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+	public OutputPump() {
+		Thread pumpThread = new Thread(this::pump, "Output-Pump");
+		pumpThread.setDaemon(true);
+		pumpThread.start();
+	}
+
+	/**
+	 * @param tailBytes how much of the most recent output to keep, or {@link Integer#MAX_VALUE} to keep all of it
+	 */
+	public Output register(Process process, int tailBytes) {
+		Output output = new Output(process, tailBytes);
+		active.add(output);
+		synchronized (registered) {
+			registered.notify();
+		}
+		return output;
+	}
+
+	private void pump() {
+		while (true) {
+			boolean didRead = false;
+
+			Iterator<Output> it = active.iterator();
+			while (it.hasNext()) {
+				Output output = it.next();
+				try {
+					//Check liveness first, a dead process with nothing left in the pipe is finished
+					boolean alive = output.process.isAlive();
+					int available = output.abandoned ? 0 : output.stream.available();
+					if(available > 0) {
+						int read = output.stream.read(readBuffer, 0, Math.min(available, readBuffer.length));
+						if(read > 0) {
+							output.append(readBuffer, read);
+							didRead = true;
+						} else if (read < 0) {
+							finish(it, output);
+						}
+					} else if (!alive || output.abandoned) {
+						finish(it, output);
+					}
+				} catch (IOException e) {
+					finish(it, output);
+				}
+			}
+
+			if(didRead) continue;
+			try {
+				synchronized (registered) {
+					if(active.isEmpty()) {
+						registered.wait();
+					} else {
+						registered.wait(IDLE_POLL_MILLIS);
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private static void finish(Iterator<Output> it, Output output) {
+		it.remove();
+		try {
+			output.stream.close();
+		} catch (IOException e) {
+			//Nothing more to read either way
+		}
+		output.drained.countDown();
+	}
+
+	public static class Output {
+
+		private final Process        process;
+		private final InputStream    stream;
+		private final CountDownLatch drained = new CountDownLatch(1);
+		private final boolean        keepAll;
+		private volatile boolean     abandoned = false;
+
+		private byte[] buffer;
+		private int    start = 0;
+		private int    length = 0;
+		private long   totalBytes = 0;
+
+		private Output(Process process, int tailBytes) {
+			this.process = process;
+			this.stream  = process.getInputStream();
+			this.keepAll = tailBytes == Integer.MAX_VALUE;
+			this.buffer  = new byte[keepAll ? 1024 : tailBytes];
+		}
+
+		private synchronized void append(byte[] data, int count) {
+			totalBytes += count;
+			if(keepAll) {
+				if(length + count > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+				System.arraycopy(data, 0, buffer, length, count);
+				length += count;
+				return;
+			}
+
+			//Only the end of anything larger than the ring matters
+			int offset = Math.max(0, count - buffer.length);
+			for (int i = offset; i < count; i++) {
+				buffer[(start + length) % buffer.length] = data[i];
+				if(length < buffer.length) {
+					length++;
+				} else {
+					start = (start + 1) % buffer.length;
+				}
+			}
+		}
+
+		/**
+		 * Waits for the pump to read everything the process wrote. Child processes that outlive their parent can
+		 * hold the pipe open, so the wait is bounded. Output is abandoned if it times out.
+		 */
+		public boolean awaitDrained(Duration timeout) throws InterruptedException {
+			if(drained.await(timeout.toMillis(), TimeUnit.MILLISECONDS)) return true;
+			abandoned = true;
+			return false;
+		}
+
+		public synchronized long getTotalBytes() {
+			return totalBytes;
+		}
+
+		/**
+		 * @return the retained output split into lines, git's progress output uses carriage returns so those
+		 *         count as line breaks too
+		 */
+		public synchronized List<String> lines() {
+			byte[] ordered = new byte[length];
+			int firstPart = Math.min(length, buffer.length - start);
+			System.arraycopy(buffer, start, ordered, 0, firstPart);
+			System.arraycopy(buffer, 0, ordered, firstPart, length - firstPart);
+
+			List<String> lines = new ArrayList<String>();
+			for (String line : new String(ordered, StandardCharsets.UTF_8).split("[\r\n]+")) {
+				if(!line.isEmpty()) lines.add(line);
+			}
+			return lines;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Tells the OS which file data won't be needed again, so that streaming a huge archive through the page cache doesn't
+ * evict the pack files git is working on.
+ *
+ * Calls posix_fadvise(POSIX_FADV_DONTNEED) through the foreign function API. The API is only final from Java 22
+ * and this project builds for older versions, so it is looked up reflectively. Anywhere it isn't available (Windows,
+ * macOS, older JVMs, native access denied) every call is a no-op.
+ *
+ * The advice applies to the file's cached pages rather than to a file descriptor, so it can be given through a
+ * descriptor of our own while the data is read or written through regular Java streams.
+ */
+public final class PageCache {
+
+	//Linux values
+	private static final int O_RDONLY            = 0;
+	private static final int POSIX_FADV_DONTNEED = 4;
+
+	private static final MethodHandle OPEN;
+	private static final MethodHandle FADVISE;
+	private static final MethodHandle CLOSE;
+	private static final Method       OPEN_ARENA;
+	private static final Method       ALLOCATE_STRING;
+
+	static {
+		MethodHandle open = null, fadvise = null, close = null;
+		Method openArena = null, allocateString = null;
+
+		if(System.getProperty("os.name", "").startsWith("Linux")) {
+			try {
+				Class<?> linkerClass     = Class.forName("java.lang.foreign.Linker");
+				Class<?> lookupClass     = Class.forName("java.lang.foreign.SymbolLookup");
+				Class<?> segmentClass    = Class.forName("java.lang.foreign.MemorySegment");
+				Class<?> layoutClass     = Class.forName("java.lang.foreign.MemoryLayout");
+				Class<?> valueLayout     = Class.forName("java.lang.foreign.ValueLayout");
+				Class<?> descriptorClass = Class.forName("java.lang.foreign.FunctionDescriptor");
+				Class<?> optionClass     = Class.forName("java.lang.foreign.Linker$Option");
+				Class<?> arenaClass      = Class.forName("java.lang.foreign.Arena");
+				Class<?> allocatorClass  = Class.forName("java.lang.foreign.SegmentAllocator");
+
+				Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+				Object lookup = linkerClass.getMethod("defaultLookup").invoke(linker);
+				Object jint   = valueLayout.getField("JAVA_INT").get(null);
+				Object jlong  = valueLayout.getField("JAVA_LONG").get(null);
+				Object addr   = valueLayout.getField("ADDRESS").get(null);
+
+				Method find     = lookupClass.getMethod("find", String.class);
+				Method of       = descriptorClass.getMethod("of", layoutClass, layoutClass.arrayType());
+				Method downcall = linkerClass.getMethod("downcallHandle", segmentClass, descriptorClass, optionClass.arrayType());
+				Object noOptions = Array.newInstance(optionClass, 0);
+
+				open    = (MethodHandle) downcall.invoke(linker, ((Optional<?>) find.invoke(lookup, "open")).orElseThrow(),
+						of.invoke(null, jint, layouts(layoutClass, addr, jint)), noOptions);
+				fadvise = (MethodHandle) downcall.invoke(linker, ((Optional<?>) find.invoke(lookup, "posix_fadvise")).orElseThrow(),
+						of.invoke(null, jint, layouts(layoutClass, jint, jlong, jlong, jint)), noOptions);
+				close   = (MethodHandle) downcall.invoke(linker, ((Optional<?>) find.invoke(lookup, "close")).orElseThrow(),
+						of.invoke(null, jint, layouts(layoutClass, jint)), noOptions);
+
+				openArena = arenaClass.getMethod("ofConfined");
+				try {
+					allocateString = allocatorClass.getMethod("allocateFrom", String.class);
+				} catch (NoSuchMethodException e) {
+					allocateString = allocatorClass.getMethod("allocateUtf8String", String.class); //Java 21 preview
+				}
+			} catch (Throwable t) {
+				System.out.println("Page cache hints are not available, continuing without them: " + t);
+				open = null;
+			}
+		}
+
+		OPEN            = open;
+		FADVISE         = fadvise;
+		CLOSE           = close;
+		OPEN_ARENA      = openArena;
+		ALLOCATE_STRING = allocateString;
+	}
+
+	private PageCache() {}
+
+	private static Object layouts(Class<?> layoutClass, Object... layouts) {
+		Object array = Array.newInstance(layoutClass, layouts.length);
+		for (int i = 0; i < layouts.length; i++) Array.set(array, i, layouts[i]);
+		return array;
+	}
+
+	public static boolean isAvailable() {
+		return null != OPEN;
+	}
+
+	/**
+	 * Drops the given range of the file from the page cache. Dirty pages are skipped rather than written back, so a
+	 * freshly written file has to be flushed first, e.g. with FileChannel.force(), for its pages to be dropped.
+	 *
+	 * @param length 0 for everything from the offset to the end of the file
+	 */
+	public static void dontNeed(Path file, long offset, long length) {
+		if(!isAvailable()) return;
+
+		try (AutoCloseable arena = (AutoCloseable) OPEN_ARENA.invoke(null)) {
+			int fd = (int) OPEN.invokeWithArguments(ALLOCATE_STRING.invoke(arena, file.toAbsolutePath().toString()), O_RDONLY);
+			if(fd < 0) return; //Only a hint, the file may have been moved on already
+			try {
+				FADVISE.invokeWithArguments(fd, offset, length, POSIX_FADV_DONTNEED);
+			} finally {
+				CLOSE.invokeWithArguments(fd);
+			}
+		} catch (Throwable t) {
+			//Only a hint, never worth failing over
+		}
+	}
+}
@@ -0,0 +1,22 @@
+import java.io.BufferedInputStream;
+
+/**
+ * Buffers an archive and keeps track of where in the archive the reader is, which is what tar offsets have to be
+ * recorded against. The archive itself is ahead by whatever is still sitting in the buffer.
+ */
+public class PositionedInputStream extends BufferedInputStream {
+
+	private final MultiPartInputStream archive;
+
+	public PositionedInputStream(MultiPartInputStream archive, int size) {
+		super(archive, size);
+		this.archive = archive;
+	}
+
+	/**
+	 * @return the offset in the archive of the next byte that will be read from this stream
+	 */
+	public synchronized long position() {
+		return archive.position() - (count - pos);
+	}
+}
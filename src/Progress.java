@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tracks how far along a run is, in bytes rather than in bundles since a handful of giant repos can take longer than
+ * thousands of small ones.
+ *
+ * A status line is printed every interval and can also be served over HTTP on the loopback interface, which serves
+ * the last line printed so that requests don't cut the reporter's rate windows short. The ETA for unbundling is the
+ * bundle bytes still to do multiplied by the time per byte observed so far.
+ */
+public class Progress {
+
+	private final AtomicLong tarBytes       = new AtomicLong(0);
+	private final AtomicLong extractedBytes = new AtomicLong(0);
+
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final AtomicInteger running = new AtomicInteger(0);
+	private final AtomicInteger done    = new AtomicInteger(0);
+	private final AtomicInteger failed  = new AtomicInteger(0);
+	private final AtomicLong    queuedBytes     = new AtomicLong(0);
+	private final AtomicLong    unbundledBytes  = new AtomicLong(0);
+
+	//Zero until the stage starts, the rates are measured from then on
+	private volatile long extractStartNanos  = 0;
+	private volatile long unbundleStartNanos = 0;
+
+	private ScheduledExecutorService reporter;
+	private HttpServer server;
+	private long lastSampleNanos;
+	private long lastExtracted;
+	private long lastUnbundled;
+	private volatile String lastStatus = "";
+
+	public void extractionStarted(long archiveBytes) {
+		if(extractStartNanos == 0) extractStartNanos = System.nanoTime();
+		tarBytes.addAndGet(archiveBytes);
+	}
+
+	//Bytes of the archive that have been dealt with, whether copied out or skipped
+	public void extracted(long bytes) {
+		extractedBytes.addAndGet(bytes);
+	}
+
+	public void queued(long bundleBytes) {
+		pending.incrementAndGet();
+		queuedBytes.addAndGet(bundleBytes);
+	}
+
+	public void started() {
+		if(unbundleStartNanos == 0) unbundleStartNanos = System.nanoTime();
+		pending.decrementAndGet();
+		running.incrementAndGet();
+	}
+
+	//A failed attempt that will be tried again later
+	public void requeued() {
+		running.decrementAndGet();
+		pending.incrementAndGet();
+	}
+
+	public void finished(long bundleBytes, boolean success) {
+		running.decrementAndGet();
+		(success ? done : failed).incrementAndGet();
+		unbundledBytes.addAndGet(bundleBytes);
+	}
+
+	/**
+	 * @param httpPort port on the loopback interface to serve the status on, or 0 for none
+	 */
+	public synchronized void start(long intervalMillis, int httpPort) throws IOException {
+		if(null != reporter) return;
+
+		if(httpPort > 0) {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+			server.createContext("/", exchange -> {
+				byte[] body = (status() + "\n").getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			server.start();
+			System.out.println("Serving progress on: http://localhost:" + httpPort + "/");
+		}
+
+		lastStatus = sample();
+		reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Progress-Reporter");
+			t.setDaemon(true);
+			return t;
+		});
+		reporter.scheduleAtFixedRate(() -> System.out.println("PROGRESS :: " + (lastStatus = sample())), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if(null != reporter) reporter.shutdownNow();
+		if(null != server) server.stop(0);
+		reporter = null;
+		server   = null;
+		System.out.println("PROGRESS :: " + sample());
+	}
+
+	/**
+	 * @return the status as of the last report, which is what the rates are measured between
+	 */
+	public String status() {
+		return lastStatus;
+	}
+
+	//Only called by the reporter, and once when starting and stopping, each call starts a new rate window
+	private synchronized String sample() {
+		long now = System.nanoTime();
+		double seconds = Math.max(0.001, (now - lastSampleNanos) / 1_000_000_000.0);
+		long extracted = extractedBytes.get();
+		long unbundled = unbundledBytes.get();
+		long queued    = queuedBytes.get();
+
+		//Current throughput since the last status, the ETAs use the average for the whole stage
+		double extractRate  = (extracted - lastExtracted) / seconds;
+		double unbundleRate = (unbundled - lastUnbundled) / seconds;
+		lastSampleNanos = now;
+		lastExtracted   = extracted;
+		lastUnbundled   = unbundled;
+
+		StringBuilder status = new StringBuilder();
+		if(tarBytes.get() > 0) {
+			status.append("extracted ").append(mb(extracted)).append(" of ").append(mb(tarBytes.get()))
+				.append(" (").append(mb((long) extractRate)).append("/s, eta ").append(eta(extractStartNanos, extracted, tarBytes.get() - extracted)).append(") | ");
+		}
+		status.append("bundles ").append(pending.get()).append(" pending, ").append(running.get()).append(" running, ")
+			.append(done.get()).append(" done, ").append(failed.get()).append(" failed | unbundled ").append(mb(unbundled)).append(" of ").append(mb(queued))
+			.append(" (").append(mb((long) unbundleRate)).append("/s, eta ").append(eta(unbundleStartNanos, unbundled, queued - unbundled)).append(")");
+		return status.toString();
+	}
+
+	//Remaining bytes at the average time per byte so far
+	private static String eta(long startNanos, long completedBytes, long remainingBytes) {
+		if(remainingBytes <= 0) return "done";
+		if(startNanos == 0 || completedBytes <= 0) return "n/a";
+
+		long seconds = (long) (((System.nanoTime() - startNanos) / 1_000_000_000.0) / completedBytes * remainingBytes);
+		return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+
+	private static String mb(long bytes) {
+		return (bytes / (1024*1024)) + " MB";
+	}
+}
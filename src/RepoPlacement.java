@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Decides which of several output roots each repo is restored to, so that the writes are spread over several disks
+ * instead of being capped by one.
+ *
+ * A repo stays where it was first placed, including across runs, so that re-running replaces it in place. The
+ * locations are written out as a tab separated manifest of repo name and root.
+ */
+public class RepoPlacement {
+
+	public enum Policy {
+		/** Each root in turn */
+		ROUND_ROBIN,
+
+		/** The root with the most usable space left, counting the bundles already placed on it */
+		FREE_SPACE,
+
+		/** The root with the fewest bundle bytes placed on it, best when bundles are placed largest first */
+		SIZE_BALANCED
+	}
+
+	private final List<Path> roots;
+	private final Policy     policy;
+	private final Path       manifestPath;
+
+	private final Map<String, Path> locations = new ConcurrentSkipListMap<String, Path>();
+	private final long[] placedBytes;
+	private int     nextRoot = 0;
+	private boolean loaded   = false;
+
+	public RepoPlacement(List<Path> roots, Policy policy, Path manifestPath) {
+		this.roots        = new ArrayList<Path>(roots);
+		this.policy       = policy;
+		this.manifestPath = manifestPath;
+		this.placedBytes  = new long[roots.size()];
+	}
+
+	public synchronized void load() throws IOException {
+		if(loaded) return;
+		loaded = true;
+
+		if(!Files.exists(manifestPath)) return;
+		for (String line : Files.readAllLines(manifestPath)) {
+			String[] fields = line.split("\t");
+			if(fields.length != 2) continue;
+
+			//Roots that have since been removed from the config are ignored, the repo is placed again
+			Path root = Paths.get(fields[1]);
+			if(roots.contains(root)) locations.put(fields[0], root);
+		}
+		System.out.println("Loaded " + locations.size() + " repo locations from: " + manifestPath);
+	}
+
+	/**
+	 * @param bundleBytes size of the repo's bundle, used as an estimate of how much the repo will take up
+	 * @return the root the repo is to be restored under
+	 */
+	public synchronized Path place(String repo, long bundleBytes) throws IOException {
+		Path root = locations.get(repo);
+
+		//A repo restored before the manifest existed, or with a different policy, is replaced where it is
+		if(null == root) {
+			for (Path candidate : roots) {
+				if(candidate.resolve(repo).toFile().exists()) {
+					root = candidate;
+					break;
+				}
+			}
+		}
+		if(null == root) root = roots.get(choose());
+
+		placedBytes[roots.indexOf(root)] += bundleBytes;
+		locations.put(repo, root);
+		return root;
+	}
+
+	//Puts the repo on the same root as another one, unless it already has a place
+	public synchronized Path placeWith(String repo, String sibling) {
+		Path root = locations.get(repo);
+		if(null == root) root = locate(sibling);
+		locations.put(repo, root);
+		return root;
+	}
+
+	private int choose() throws IOException {
+		if(roots.size() == 1) return 0;
+
+		int best = 0;
+		switch (policy) {
+			case ROUND_ROBIN:
+				best = nextRoot;
+				nextRoot = (nextRoot + 1) % roots.size();
+				break;
+			case FREE_SPACE:
+				long mostFree = Long.MIN_VALUE;
+				for (int i = 0; i < roots.size(); i++) {
+					//Nothing has been written yet for the repos placed so far in this run
+					long free = Files.getFileStore(roots.get(i)).getUsableSpace() - placedBytes[i];
+					if(free > mostFree) {
+						mostFree = free;
+						best = i;
+					}
+				}
+				break;
+			case SIZE_BALANCED:
+				for (int i = 1; i < roots.size(); i++) {
+					if(placedBytes[i] < placedBytes[best]) best = i;
+				}
+				break;
+		}
+		return best;
+	}
+
+	/**
+	 * @return where the repo was placed, repos that were never placed go to the first root
+	 */
+	public Path locate(String repo) {
+		Path root = locations.get(repo);
+		return null == root ? roots.get(0) : root;
+	}
+
+	public List<Path> roots() {
+		return roots;
+	}
+
+	public synchronized void write() throws IOException {
+		//Several workers on one host share the manifest, keep the repos the others have placed since it was loaded
+		Path lockPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".lock");
+		try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock = lockChannel.lock();
+			try {
+				Map<String, Path> merged = new TreeMap<String, Path>();
+				if(Files.exists(manifestPath)) {
+					for (String line : Files.readAllLines(manifestPath)) {
+						String[] fields = line.split("\t");
+						if(fields.length == 2 && roots.contains(Paths.get(fields[1]))) merged.put(fields[0], Paths.get(fields[1]));
+					}
+				}
+				merged.putAll(locations);
+
+				List<String> lines = new ArrayList<String>(merged.size());
+				for (Map.Entry<String, Path> location : merged.entrySet()) {
+					lines.add(location.getKey() + "\t" + location.getValue());
+				}
+				//Moved into place so that a worker loading it never sees it half written
+				Path temp = Files.createTempFile(manifestPath.toAbsolutePath().getParent(), manifestPath.getFileName().toString(), ".tmp");
+				Files.write(temp, lines);
+				Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				lock.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns the stored data of a sparse tar entry back into the whole file, given the stream positioned at the start of
+ * the stored data and the entry's sparse map. The stored segments follow each other in the archive with nothing in
+ * between, everything outside of them is a hole and is read as zeros.
+ */
+public class SparseInputStream extends InputStream {
+
+	private final InputStream in;
+	private final List<Inventory.Segment> segments; //Ordered by offset, as in the tar headers
+	private final long size;
+
+	private int  segment  = 0;
+	private long position = 0;
+
+	public SparseInputStream(InputStream in, List<Inventory.Segment> segments, long size) {
+		this.in       = in;
+		this.segments = segments;
+		this.size     = size;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if(length == 0) return 0;
+		if(position >= size) return -1;
+		while (segment < segments.size() && position >= segments.get(segment).end()) segment++;
+
+		//Never crosses from a hole into a segment or the other way around
+		if(segment >= segments.size() || position < segments.get(segment).offset()) {
+			long holeEnd = segment < segments.size() ? segments.get(segment).offset() : size;
+			int count = (int) Math.min(length, holeEnd - position);
+			Arrays.fill(buffer, offset, offset + count, (byte) 0);
+			position += count;
+			return count;
+		}
+
+		int read = in.read(buffer, offset, (int) Math.min(length, segments.get(segment).end() - position));
+		if(read < 0) throw new EOFException("Archive ended inside the stored data of a sparse entry");
+		position += read;
+		return read;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
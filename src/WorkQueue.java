@@ -0,0 +1,331 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Shares out the restore of an export between several workers, on one host or on several hosts that see the export
+ * and the queue directory through a shared filesystem. Nothing but files is used, so there is no server to run.
+ *
+ * The coordinator publishes the inventory as numbered work units, each a file of inventory lines, largest first. A
+ * worker claims a unit by creating its lock file, which only one worker can do, and keeps the lease alive by touching
+ * the lock file. A lease that hasn't been renewed within the timeout belongs to a worker that died or hung, and is
+ * stolen by the next worker to come across it. Once a unit has been restored and unbundled a done marker is written.
+ *
+ * A worker claims several units at once but only starts each one when its first bundle comes up, by creating a started
+ * marker. Until then a worker with nothing left to claim can take the unit over by creating the marker itself, so that
+ * the units queued behind another worker's slow ones don't wait for it.
+ */
+public class WorkQueue {
+
+	private static final String UNIT_SUFFIX    = ".unit";
+	private static final String LOCK_SUFFIX    = ".lock";
+	private static final String DONE_SUFFIX    = ".done";
+	private static final String STARTED_SUFFIX = ".started";
+	private static final String READY_MARKER   = "queue.ready"; //Written last, workers wait for it
+
+	public record Unit(String name, List<Inventory.Entry> entries) {
+
+		public long bytes() {
+			long bytes = 0;
+			for (Inventory.Entry entry : entries) bytes += entry.size();
+			return bytes;
+		}
+	}
+
+	private final Path   path;
+	private final String workerId;
+	private final long   leaseTimeoutMillis;
+
+	private final Set<Path> leases = ConcurrentHashMap.newKeySet();
+	private ScheduledExecutorService heartbeat;
+
+	public WorkQueue(Path path, String workerId, long leaseTimeoutMillis) {
+		this.path               = path;
+		this.workerId           = workerId;
+		this.leaseTimeoutMillis = leaseTimeoutMillis;
+	}
+
+	/**
+	 * Replaces anything already in the queue with the given entries. Bundles of at least unitBytes get a unit each, the
+	 * smaller ones are batched together up to that size so that a claim is never dominated by its overhead.
+	 *
+	 * @return the number of units published
+	 */
+	public int publish(Collection<Inventory.Entry> entries, long unitBytes) throws IOException {
+		Files.createDirectories(path);
+		try (Stream<Path> files = Files.list(path)) {
+			for (Path file : files.toList()) {
+				String name = file.getFileName().toString();
+				if(name.endsWith(UNIT_SUFFIX) || name.endsWith(LOCK_SUFFIX) || name.endsWith(DONE_SUFFIX) || name.endsWith(STARTED_SUFFIX) || name.equals(READY_MARKER)) Files.delete(file);
+			}
+		}
+
+		//Largest first, so the giant repos are claimed while there are still small units left to balance the workers
+		List<Inventory.Entry> sorted = new ArrayList<Inventory.Entry>(entries);
+		sorted.sort(Comparator.comparingLong(Inventory.Entry::size).reversed());
+
+		int units = 0;
+		List<String> lines = new ArrayList<String>();
+		long bytes = 0;
+		for (Inventory.Entry entry : sorted) {
+			if(!lines.isEmpty() && bytes + entry.size() > unitBytes) {
+				writeUnit(units++, lines);
+				lines.clear();
+				bytes = 0;
+			}
+			lines.add(entry.toLine());
+			bytes += entry.size();
+		}
+		if(!lines.isEmpty()) writeUnit(units++, lines);
+
+		Files.writeString(path.resolve(READY_MARKER), units + System.lineSeparator());
+		return units;
+	}
+
+	private void writeUnit(int number, List<String> lines) throws IOException {
+		//Written under another name and moved into place, so that a unit is never seen half written
+		Path unit = path.resolve(String.format("%06d", number) + UNIT_SUFFIX);
+		Path temp = path.resolve(unit.getFileName() + ".tmp");
+		Files.write(temp, lines, StandardCharsets.UTF_8);
+		Files.move(temp, unit, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public boolean isPublished() {
+		return Files.exists(path.resolve(READY_MARKER));
+	}
+
+	/**
+	 * @return the names of all the units in the order they should be claimed, empty until the queue is published
+	 */
+	public List<String> units() throws IOException {
+		List<String> units = new ArrayList<String>();
+		if(!isPublished()) return units;
+
+		try (Stream<Path> files = Files.list(path)) {
+			files.forEach(file -> {
+				String name = file.getFileName().toString();
+				if(name.endsWith(UNIT_SUFFIX)) units.add(name.substring(0, name.length() - UNIT_SUFFIX.length()));
+			});
+		}
+		units.sort(null);
+		return units;
+	}
+
+	public boolean isDone(String unit) {
+		return Files.exists(path.resolve(unit + DONE_SUFFIX));
+	}
+
+	public boolean allDone() throws IOException {
+		if(!isPublished()) return false;
+		for (String unit : units()) {
+			if(!isDone(unit)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the unit if this worker now holds its lease, null if it is done or leased to a live worker
+	 */
+	public Unit tryClaim(String unit) throws IOException {
+		if(isDone(unit)) return null;
+
+		Path lock = path.resolve(unit + LOCK_SUFFIX);
+		if(!createMarker(lock)) {
+			if(!isExpired(lock)) return null;
+
+			//Only one worker can move the stale lock away, everyone else gets an exception
+			Path stale = path.resolve(unit + LOCK_SUFFIX + "." + workerId + ".stale");
+			try {
+				Files.move(lock, stale, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				return null;
+			}
+			System.out.println("Lease on work unit " + unit + " expired, held by: " + readQuietly(stale));
+			Files.deleteIfExists(stale);
+
+			//Whatever the dead worker had started is redone from the beginning. Cleared while there is no lock, so that it
+			//can't be taken for another worker's takeover.
+			Files.deleteIfExists(path.resolve(unit + STARTED_SUFFIX));
+			if(!createMarker(lock)) return null;
+		}
+		leases.add(lock);
+
+		//Finished by another worker between the check and the claim
+		if(isDone(unit)) {
+			release(unit);
+			return null;
+		}
+
+		Unit claimed = readUnit(unit);
+		System.out.println("Worker " + workerId + " claimed work unit " + unit + " with " + claimed.entries().size() + " bundles");
+		return claimed;
+	}
+
+	/**
+	 * Takes over a unit that another worker has claimed but not started yet.
+	 *
+	 * @return the unit, already started by this worker, or null if it is done, started or couldn't be taken over
+	 */
+	public Unit trySteal(String unit) throws IOException {
+		if(isDone(unit)) return null;
+
+		Path lock = path.resolve(unit + LOCK_SUFFIX);
+		if(!Files.exists(lock) || isOwnLock(lock)) return null;
+
+		//Whoever creates the started marker gets to do the unit, the worker that claimed it gives it up when it sees this
+		String owner = readQuietly(lock);
+		if(!createMarker(path.resolve(unit + STARTED_SUFFIX))) return null;
+		Files.writeString(lock, workerId + System.lineSeparator(), StandardCharsets.UTF_8);
+		leases.add(lock);
+
+		Unit stolen = readUnit(unit);
+		System.out.println("Worker " + workerId + " took over work unit " + unit + " with " + stolen.entries().size() + " bundles, not yet started by: " + owner);
+		return stolen;
+	}
+
+	/**
+	 * Marks a claimed unit as started by this worker, which it has to do before any of its work.
+	 *
+	 * @return false if another worker took the unit over first, in which case its lease is given up
+	 */
+	public boolean start(String unit) {
+		Path started = path.resolve(unit + STARTED_SUFFIX);
+		try {
+			if(createMarker(started)) return true;
+		} catch (IOException e) {
+			//Left unstarted, the lease is dropped below and expires, so the unit goes to another worker
+			System.out.println("Failed to start work unit " + unit + ": " + e.getMessage());
+		}
+
+		String owner = readQuietly(started);
+		if(workerId.equals(owner)) return true;
+		System.out.println("Work unit " + unit + " was taken over before it started by: " + owner);
+		leases.remove(path.resolve(unit + LOCK_SUFFIX));
+		return false;
+	}
+
+	private Unit readUnit(String unit) throws IOException {
+		List<Inventory.Entry> entries = new ArrayList<Inventory.Entry>();
+		for (String line : Files.readAllLines(path.resolve(unit + UNIT_SUFFIX), StandardCharsets.UTF_8)) {
+			Inventory.Entry entry = Inventory.Entry.fromLine(line);
+			if(null != entry) entries.add(entry);
+		}
+		return new Unit(unit, entries);
+	}
+
+	//Only one worker can create a given marker, it holds that worker's name
+	private boolean createMarker(Path marker) throws IOException {
+		try {
+			Files.writeString(marker, workerId + System.lineSeparator(), StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+
+	//The lock's modified time is the last heartbeat, so the hosts' clocks need to agree to well within the timeout
+	private boolean isExpired(Path lock) {
+		try {
+			return System.currentTimeMillis() - Files.getLastModifiedTime(lock).toMillis() > leaseTimeoutMillis;
+		} catch (IOException e) {
+			return false; //Released or stolen in the meantime, try again on the next pass
+		}
+	}
+
+	private static String readQuietly(Path file) {
+		try {
+			return Files.readString(file).trim();
+		} catch (IOException e) {
+			return "unknown";
+		}
+	}
+
+	public void complete(Unit unit) throws IOException {
+		Files.writeString(path.resolve(unit.name() + DONE_SUFFIX), workerId + "\t" + Instant.now() + System.lineSeparator());
+		release(unit.name());
+	}
+
+	public void release(String unit) throws IOException {
+		Path lock = path.resolve(unit + LOCK_SUFFIX);
+		leases.remove(lock);
+		
+		//Another worker may have taken over the lease after it expired, its lock is left alone
+		if(isOwnLock(lock)) Files.deleteIfExists(lock);
+	}
+
+	//The owner is read back from the lock. A lock can only change hands once it has gone a whole lease timeout without
+	//a heartbeat, so the owner can't realistically change between this check and acting on it.
+	private boolean isOwnLock(Path lock) {
+		return workerId.equals(readQuietly(lock));
+	}
+
+	//How often the leases are renewed, and how often an idle worker looks for expired ones
+	public long pollMillis() {
+		return Math.max(1000, leaseTimeoutMillis / 4);
+	}
+
+	public synchronized void startHeartbeat() {
+		if(null != heartbeat) return;
+		heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Work-Queue-Heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		heartbeat.scheduleAtFixedRate(() -> {
+			for (Path lock : leases) {
+				if(!isOwnLock(lock)) {
+					//Keep going, the unit will be done twice but the result is the same. Not renewed, that would keep the
+					//other worker's lease alive even if it died.
+					System.out.println("Lease lost, another worker took over: " + lock);
+					leases.remove(lock);
+					continue;
+				}
+				try {
+					Files.setLastModifiedTime(lock, FileTime.fromMillis(System.currentTimeMillis()));
+				} catch (NoSuchFileException e) {
+					//Moved away between the check and the renewal
+					System.out.println("Lease lost, another worker took over: " + lock);
+					leases.remove(lock);
+				} catch (IOException e) {
+					System.out.println("Failed to renew lease " + lock + ": " + e.getMessage());
+				}
+			}
+		}, pollMillis(), pollMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopHeartbeat() {
+		if(null != heartbeat) heartbeat.shutdownNow();
+		heartbeat = null;
+	}
+
+	public String status() throws IOException {
+		int done = 0, leased = 0, waiting = 0;
+		for (String unit : units()) {
+			if(isDone(unit)) {
+				done++;
+			} else if(Files.exists(path.resolve(unit + LOCK_SUFFIX))) {
+				leased++;
+			} else {
+				waiting++;
+			}
+		}
+		return (done + leased + waiting) + " work units: " + done + " done, " + leased + " leased, " + waiting + " waiting";
+	}
+}
@@ -36,6 +36,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -43,15 +44,23 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.LongSupplier;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipEncoding;
 import org.apache.commons.compress.archivers.zip.ZipEncodingHelper;
 import org.apache.commons.compress.utils.ArchiveUtils;
-import org.apache.commons.compress.utils.BoundedInputStream;
 import org.apache.commons.compress.utils.IOUtils;
 
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
 /**
  * The TarInputStream reads a UNIX tar archive as an InputStream.
  * methods are provided to position at each successive entry in
@@ -63,6 +72,49 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
 
     private static final int SMALL_BUFFER_SIZE = 256;
 
+    /**
+     * Flight recorder event for reading a header, including skipping the rest of the previous entry.
+     */
+    @Name("gitunbundler.TarNextEntry")
+    @Label("Tar Next Entry")
+    @Category({"GitUnbundler", "Tar"})
+    @Description("Skipping to and reading the next tar header")
+    @StackTrace(false)
+    static class NextEntryEvent extends Event {
+        @Label("Entry Name")
+        String entryName;
+
+        @Label("Entry Size")
+        @DataAmount
+        long entrySize;
+
+        @Label("Archive Offset")
+        long archiveOffset;
+
+        @Label("Sparse")
+        boolean sparse;
+    }
+
+    /**
+     * Flight recorder event for skipping entry data, a seek unless the entry is sparse.
+     */
+    @Name("gitunbundler.TarSkip")
+    @Label("Tar Skip")
+    @Category({"GitUnbundler", "Tar"})
+    @StackTrace(false)
+    static class SkipEvent extends Event {
+        @Label("Entry Name")
+        String entryName;
+
+        @Label("Requested")
+        @DataAmount
+        long requested;
+
+        @Label("Skipped")
+        @DataAmount
+        long skipped;
+    }
+
     /**
      * Checks if the signature matches what is expected for a tar file.
      *
@@ -129,11 +181,17 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
     /** An input stream to read from */
     private final InputStream inputStream;
 
-    /** Input streams for reading sparse entries **/
-    private List<InputStream> sparseInputStreams;
+    /**
+     * Sparse map of the current entry: where each stored data segment starts in the extracted entry, how long it
+     * is and how much stored data comes before it. Everything between the segments is a hole of zeros.
+     * Null when the entry isn't sparse or has no segments.
+     */
+    private long[] sparseOffsets;
+    private long[] sparseLengths;
+    private long[] sparseDataStarts;
 
-    /** the index of current input stream being read when reading sparse entries */
-    private int currentSparseInputStreamIndex;
+    /** How much of the current sparse entry's stored data has been consumed from the input stream */
+    private long sparseDataConsumed;
 
     /** The meta-data about the current entry */
     private TarArchiveEntry currEntry;
@@ -153,12 +211,34 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
     private final boolean lenient;
     
     private final long fileSize;
-    private final FileInputStream fileInputStream; //Not a great idea to hold the underlying IS and the wrapped IS
+    private final LongSupplier filePosition; //Position of the reader in the archive, for what is left and for record alignment
     
+    /**
+     * The file's position is ahead of the reader by whatever inputStream has buffered, so resynchronise() and the
+     * offsets in messages are only exact when inputStream isn't buffered.
+     */
     public WorkAroundTarArchiveInputStream(final InputStream inputStream, final FileInputStream fileInputStream, final Path filePath) throws IOException {
+        this(inputStream, Files.size(filePath), () -> {
+            try {
+                return fileInputStream.getChannel().position();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * For archives that are not a single file, such as split archives read through one stream.
+     *
+     * @param inputStream the (usually buffered) stream to read the archive from
+     * @param fileSize the total size of the archive
+     * @param filePosition how far into the archive the reader is, taking the buffering into account. Records are
+     *                     aligned to it, so it has to be exact.
+     */
+    public WorkAroundTarArchiveInputStream(final InputStream inputStream, final long fileSize, final LongSupplier filePosition) {
 
-        this.fileSize = Files.size(filePath);
-        this.fileInputStream = fileInputStream;
+        this.fileSize = fileSize;
+        this.filePosition = filePosition;
         
         this.inputStream = inputStream;
         this.hasHitEOF = false;
@@ -171,7 +251,22 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
     }
     
     private long inputStreamAvailableLong() throws IOException {
-		return fileSize - fileInputStream.getChannel().position();
+        return fileSize - getArchivePosition();
+    }
+
+    /**
+     * DF: Where the reader is in the archive. Unlike getBytesRead(), which counts the holes of sparse entries but not
+     * pax headers or sparse maps, this is a real offset into the archive.
+     *
+     * @return The offset of the next byte to be read.
+     * @throws IOException on error
+     */
+    public long getArchivePosition() throws IOException {
+        try {
+            return filePosition.getAsLong();
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
     
     /**
@@ -192,6 +287,19 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
      */
     @Override
     public long skip(final long n) throws IOException {
+        final SkipEvent event = new SkipEvent();
+        event.begin();
+        final long skipped = skipEntryData(n);
+        if (event.shouldCommit()) {
+            event.entryName = currEntry == null ? null : currEntry.getName();
+            event.requested = n;
+            event.skipped = skipped;
+            event.commit();
+        }
+        return skipped;
+    }
+
+    private long skipEntryData(final long n) throws IOException {
         if (n <= 0 || isDirectory()) {
             return 0;
         }
@@ -267,45 +375,84 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
 
 
     /**
-     * Build the input streams consisting of all-zero input streams and non-zero input streams.
-     * When reading from the non-zero input streams, the data is actually read from the original input stream.
-     * The size of each input stream is introduced by the sparse headers.
+     * Build the sparse map of the current entry from its sparse headers. Only the segment boundaries are kept,
+     * positions within the entry are worked out from them when reading or skipping.
      *
-     * NOTE : Some all-zero input streams and non-zero input streams have the size of 0. We DO NOT store the
-     *        0 size input streams because they are meaningless.
+     * NOTE : Segments with a size of 0 carry no data and are not stored.
      */
-    private void buildSparseInputStreams() throws IOException {
-        currentSparseInputStreamIndex = -1;
-        sparseInputStreams = new ArrayList<>();
+    private void buildSparseMap() throws IOException {
+        sparseOffsets = null;
+        sparseLengths = null;
+        sparseDataStarts = null;
+        sparseDataConsumed = 0;
 
         final List<TarArchiveStructSparse> sparseHeaders = currEntry.getOrderedSparseHeaders();
+        final long[] offsets = new long[sparseHeaders.size()];
+        final long[] lengths = new long[sparseHeaders.size()];
+        final long[] dataStarts = new long[sparseHeaders.size()];
 
-        // Stream doesn't need to be closed at all as it doesn't use any resources
-        final InputStream zeroInputStream = new TarArchiveSparseZeroInputStream(); //NOSONAR
-        // logical offset into the extracted entry
+        // logical offset into the extracted entry, and into the stored data
         long offset = 0;
+        long dataOffset = 0;
+        int segments = 0;
         for (final TarArchiveStructSparse sparseHeader : sparseHeaders) {
-            final long zeroBlockSize = sparseHeader.getOffset() - offset;
-            if (zeroBlockSize < 0) {
+            if (sparseHeader.getOffset() - offset < 0) {
                 // sparse header says to move backwards inside the extracted entry
                 throw new IOException("Corrupted struct sparse detected");
             }
 
-            // only store the zero block if it is not empty
-            if (zeroBlockSize > 0) {
-                sparseInputStreams.add(new BoundedInputStream(zeroInputStream, sparseHeader.getOffset() - offset));
-            }
-
-            // only store the input streams with non-zero size
+            // only store the segments with non-zero size
             if (sparseHeader.getNumbytes() > 0) {
-                sparseInputStreams.add(new BoundedInputStream(inputStream, sparseHeader.getNumbytes()));
+                offsets[segments] = sparseHeader.getOffset();
+                lengths[segments] = sparseHeader.getNumbytes();
+                dataStarts[segments] = dataOffset;
+                dataOffset += sparseHeader.getNumbytes();
+                segments++;
             }
 
             offset = sparseHeader.getOffset() + sparseHeader.getNumbytes();
         }
 
-        if (!sparseInputStreams.isEmpty()) {
-            currentSparseInputStreamIndex = 0;
+        if (segments > 0) {
+            sparseOffsets = Arrays.copyOf(offsets, segments);
+            sparseLengths = Arrays.copyOf(lengths, segments);
+            sparseDataStarts = Arrays.copyOf(dataStarts, segments);
+        }
+    }
+
+    /**
+     * @return the index of the last segment starting at or before the logical offset, or -1 if the offset is in the
+     *         hole before the first segment
+     */
+    private int findSparseSegment(final long logicalOffset) {
+        final int found = Arrays.binarySearch(sparseOffsets, logicalOffset);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * @return how much stored data comes before the logical offset
+     */
+    private long sparseDataPosition(final long logicalOffset) {
+        final int segment = findSparseSegment(logicalOffset);
+        if (segment < 0) {
+            return 0;
+        }
+        return sparseDataStarts[segment] + Math.min(logicalOffset - sparseOffsets[segment], sparseLengths[segment]);
+    }
+
+    /**
+     * Moves the input stream forward to the stored data for the logical offset. Holes take no space in the archive,
+     * so only the stored data in between is skipped.
+     */
+    private void seekSparseData(final long logicalOffset) throws IOException {
+        final long dataPosition = sparseDataPosition(logicalOffset);
+        if (dataPosition > sparseDataConsumed) {
+            final long toSkip = dataPosition - sparseDataConsumed;
+            final long skipped = IOUtils.skip(inputStream, toSkip);
+            sparseDataConsumed += skipped;
+            if (skipped < toSkip) {
+                throw new IOException("Truncated TAR archive");
+            }
         }
     }
 
@@ -325,13 +472,6 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
      */
     @Override
     public void close() throws IOException {
-        // Close all the input streams in sparseInputStreams
-        if (sparseInputStreams != null) {
-            for (final InputStream inputStream : sparseInputStreams) {
-                inputStream.close();
-            }
-        }
-
         inputStream.close();
     }
 
@@ -341,7 +481,7 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
      * the tool creating this archive has padded the last block.
      */
     private void consumeRemainderOfLastBlock() throws IOException {
-        final long bytesReadOfLastBlock = getBytesRead() % blockSize;
+        final long bytesReadOfLastBlock = getArchivePosition() % blockSize;
         if (bytesReadOfLastBlock > 0) {
             final long skipped = IOUtils.skip(inputStream, blockSize - bytesReadOfLastBlock);
             count(skipped);
@@ -439,6 +579,20 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
      */
     @Deprecated
     public TarArchiveEntry getNextTarEntry() throws IOException {
+        final NextEntryEvent event = new NextEntryEvent();
+        event.begin();
+        final TarArchiveEntry entry = readNextTarEntry();
+        if (event.shouldCommit() && entry != null) {
+            event.entryName = entry.getName();
+            event.entrySize = entry.getRealSize();
+            event.archiveOffset = filePosition.getAsLong();
+            event.sparse = entry.isSparse();
+            event.commit();
+        }
+        return entry;
+    }
+
+    private TarArchiveEntry readNextTarEntry() throws IOException {
         if (isAtEOF()) {
             return null;
         }
@@ -459,6 +613,12 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
             return null;
         }
 
+        // DF: a record that isn't a header would otherwise be read as one, with a made up size
+        if (!hasValidCheckSum(headerBuf)) {
+            currEntry = null;
+            throw new IOException("Header checksum mismatch at offset " + (getArchivePosition() - recordSize));
+        }
+
         try {
             currEntry = new TarArchiveEntry(globalPaxHeaders, headerBuf, zipEncoding, lenient);
         } catch (final IllegalArgumentException e) {
@@ -548,6 +708,54 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
         return headerBuf;
     }
 
+    /**
+     * DF: Recovers from a malformed header, or from an entry that couldn't be read to its end, by scanning forward
+     * record by record for the next one with a valid header checksum. The stream is left in front of that header so
+     * that the next call to getNextEntry() returns it, or at EOF if there is none. Whatever was skipped is lost.
+     *
+     * @return The number of bytes skipped.
+     * @throws IOException on error, or if the underlying stream doesn't support mark
+     */
+    public long resynchronise() throws IOException {
+        if (!inputStream.markSupported()) {
+            throw new IOException("Cannot resynchronise a stream without mark support");
+        }
+        currEntry = null;
+        sparseOffsets = null;
+        sparseLengths = null;
+        sparseDataStarts = null;
+        setAtEOF(false);
+
+        // Headers always start on a record boundary, counted from the start of the archive
+        final long start = getArchivePosition();
+        if (start % recordSize != 0) {
+            count(IOUtils.skip(inputStream, recordSize - start % recordSize));
+        }
+
+        while (true) {
+            inputStream.mark(recordSize);
+            final byte[] record = readRecord();
+            if (record == null) {
+                setAtEOF(true);
+                return getArchivePosition() - start;
+            }
+            if (!isEOFRecord(record) && hasValidCheckSum(record)) {
+                pushedBackBytes(recordSize);
+                inputStream.reset();
+                return getArchivePosition() - start;
+            }
+        }
+    }
+
+    // DF: the stored checksum is parsed as octal, which fails on anything that isn't a header
+    private static boolean hasValidCheckSum(final byte[] record) {
+        try {
+            return TarUtils.verifyCheckSum(record);
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     /**
      * Gets the record size being used by this stream's buffer.
      *
@@ -642,7 +850,7 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
 
         // sparse headers are all done reading, we need to build
         // sparse input streams using these sparse headers
-        buildSparseInputStreams();
+        buildSparseMap();
     }
 
     /**
@@ -729,7 +937,7 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
 
         // sparse headers are all done reading, we need to build
         // sparse input streams using these sparse headers
-        buildSparseInputStreams();
+        buildSparseMap();
     }
 
     /**
@@ -753,8 +961,8 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
      * stored in tar files, and they are stored separately. The structure of non-zero data is introduced by the
      * sparse headers using the offset, where a block of non-zero data starts, and numbytes, the length of the
      * non-zero data block.
-     * When reading sparse entries, the actual data is read out with "holes" and non-zero data combined together
-     * according to the sparse headers.
+     * When reading sparse entries, the segment at the current offset is looked up in the sparse map and either
+     * zeros for a hole or stored data for a segment are returned, never crossing into the next one.
      *
      * @param buf The buffer into which to place bytes read.
      * @param offset The offset at which to place bytes read.
@@ -763,43 +971,30 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
      * @throws IOException on error
      */
     private int readSparse(final byte[] buf, final int offset, final int numToRead) throws IOException {
-        // if there are no actual input streams, just read from the original input stream
-        if (sparseInputStreams == null || sparseInputStreams.isEmpty()) {
+        // if there are no segments, just read from the original input stream
+        if (sparseOffsets == null) {
             return inputStream.read(buf, offset, numToRead);
         }
 
-        if (currentSparseInputStreamIndex >= sparseInputStreams.size()) {
-            return -1;
-        }
-
-        final InputStream currentInputStream = sparseInputStreams.get(currentSparseInputStreamIndex);
-        final int readLen = currentInputStream.read(buf, offset, numToRead);
+        final int segment = findSparseSegment(entryOffset);
+        final long segmentEnd = segment < 0 ? 0 : sparseOffsets[segment] + sparseLengths[segment];
 
-        // if the current input stream is the last input stream,
-        // just return the number of bytes read from current input stream
-        if (currentSparseInputStreamIndex == sparseInputStreams.size() - 1) {
-            return readLen;
-        }
-
-        // if EOF of current input stream is meet, open a new input stream and recursively call read
-        if (readLen == -1) {
-            currentSparseInputStreamIndex++;
-            return readSparse(buf, offset, numToRead);
-        }
-
-        // if the rest data of current input stream is not long enough, open a new input stream
-        // and recursively call read
-        if (readLen < numToRead) {
-            currentSparseInputStreamIndex++;
-            final int readLenOfNext = readSparse(buf, offset + readLen, numToRead - readLen);
-            if (readLenOfNext == -1) {
-                return readLen;
+        if (entryOffset >= segmentEnd) {
+            // in a hole, which runs up to the next segment or to the end of the entry
+            final long holeEnd = segment + 1 < sparseOffsets.length ? sparseOffsets[segment + 1] : currEntry.getRealSize();
+            final int zeros = (int) Math.min(numToRead, holeEnd - entryOffset);
+            if (zeros <= 0) {
+                return -1;
             }
-
-            return readLen + readLenOfNext;
+            Arrays.fill(buf, offset, offset + zeros, (byte) 0);
+            return zeros;
         }
 
-        // if the rest data of current input stream is enough(which means readLen == len), just return readLen
+        seekSparseData(entryOffset);
+        final int readLen = inputStream.read(buf, offset, (int) Math.min(numToRead, segmentEnd - entryOffset));
+        if (readLen > 0) {
+            sparseDataConsumed += readLen;
+        }
         return readLen;
     }
 
@@ -819,31 +1014,20 @@ public class WorkAroundTarArchiveInputStream extends ArchiveInputStream<TarArchi
     }
 
     /**
-     * Skip n bytes from current input stream, if the current input stream doesn't have enough data to skip,
-     * jump to the next input stream and skip the rest bytes, keep doing this until total n bytes are skipped
-     * or the input streams are all skipped
+     * Skip n bytes of the current sparse entry. The target is found in the sparse map by binary search and only the
+     * stored data before it is skipped in the input stream, however many segments and holes are in between.
      *
-     * @param n bytes of data to skip
+     * @param n bytes of data to skip, never past the end of the entry
      * @return actual bytes of data skipped
      * @throws IOException
      */
     private long skipSparse(final long n) throws IOException {
-        if (sparseInputStreams == null || sparseInputStreams.isEmpty()) {
+        if (sparseOffsets == null) {
             return inputStream.skip(n);
         }
 
-        long bytesSkipped = 0;
-
-        while (bytesSkipped < n && currentSparseInputStreamIndex < sparseInputStreams.size()) {
-            final InputStream  currentInputStream = sparseInputStreams.get(currentSparseInputStreamIndex);
-            bytesSkipped += currentInputStream.skip(n - bytesSkipped);
-
-            if (bytesSkipped < n) {
-                currentSparseInputStreamIndex++;
-            }
-        }
-
-        return bytesSkipped;
+        seekSparseData(entryOffset + n);
+        return n;
     }
 
     /**